@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * Fiji Developer plugin for Fiji.
+ * %%
+ * Copyright (C) 2009 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji;
+
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * Crops away uniform borders of RGB images.
+ *
+ * The borders are found by scanning inward from each edge, stopping at the
+ * first pixel that differs from the background, so only the border
+ * pixels (and one row or column of contents per edge) are looked at.
+ */
+public class AutoCrop {
+	/*
+	 * Returns the smallest rectangle containing all pixels differing from
+	 * the background (ignoring alpha) by more than the tolerance in any
+	 * channel, or null if there is no such pixel.
+	 */
+	public static Rectangle getBounds(int[] pixels, int width, int height,
+			int background, int tolerance) {
+		background &= 0xffffff;
+
+		int top = 0;
+		while (top < height && isBackground(pixels, top * width,
+					top * width + width, background, tolerance))
+			top++;
+		if (top == height)
+			return null;
+		int bottom = height - 1;
+		while (isBackground(pixels, bottom * width,
+					bottom * width + width, background, tolerance))
+			bottom--;
+
+		// scan the remaining rows from both ends up to the known bounds
+		int left = width - 1, right = 0;
+		for (int y = top; y <= bottom; y++) {
+			int offset = y * width;
+			int x = 0;
+			while (x < left && isBackground(pixels[offset + x],
+						background, tolerance))
+				x++;
+			left = x;
+			x = width - 1;
+			while (x > right && isBackground(pixels[offset + x],
+						background, tolerance))
+				x--;
+			right = x;
+		}
+		return new Rectangle(left, top, right + 1 - left,
+				bottom + 1 - top);
+	}
+
+	public static Rectangle getBounds(ImageProcessor ip, int background,
+			int tolerance) {
+		if (!(ip.getPixels() instanceof int[]))
+			return new Rectangle(0, 0, ip.getWidth(), ip.getHeight());
+		return getBounds((int[])ip.getPixels(), ip.getWidth(),
+				ip.getHeight(), background, tolerance);
+	}
+
+	/*
+	 * Returns a cropped copy of an RGB image, or the image itself if there
+	 * is nothing to crop (or nothing but background).
+	 */
+	public static ImageProcessor crop(ImageProcessor ip, int background,
+			int tolerance) {
+		Rectangle bounds = getBounds(ip, background, tolerance);
+		if (bounds == null || (bounds.width == ip.getWidth() &&
+					bounds.height == ip.getHeight()))
+			return ip;
+		ip.setRoi(bounds);
+		ImageProcessor result = ip.crop();
+		ip.setRoi((Rectangle)null);
+		return result;
+	}
+
+	protected static boolean isBackground(int[] pixels, int start,
+			int end, int background, int tolerance) {
+		// cheap exact comparison first, the usual case for solid borders
+		int i = start;
+		while (i < end && (pixels[i] & 0xffffff) == background)
+			i++;
+		for (; i < end; i++)
+			if (!isBackground(pixels[i], background, tolerance))
+				return false;
+		return true;
+	}
+
+	protected static boolean isBackground(int value, int background,
+			int tolerance) {
+		int difference = (value & 0xffffff) ^ background;
+		if (difference == 0)
+			return true;
+		if (tolerance <= 0)
+			return false;
+		return Math.abs(((value >> 16) & 0xff) - (background >> 16))
+				<= tolerance &&
+			Math.abs(((value >> 8) & 0xff) - ((background >> 8) & 0xff))
+				<= tolerance &&
+			Math.abs((value & 0xff) - (background & 0xff))
+				<= tolerance;
+	}
+}
@@ -0,0 +1,283 @@
+/*-
+ * #%L
+ * Fiji Developer plugin for Fiji.
+ * %%
+ * Copyright (C) 2009 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+import ij.process.ImageProcessor;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Prettifies all screenshots in a directory (or all slices of a stack)
+ * and writes them as PNGs into an output directory.
+ *
+ * Images are rendered in software a few at a time, and each result is
+ * written as soon as it is ready, so this works headless and on large
+ * batches.
+ */
+public class Batch_Prettify_Wiki_Screenshots implements PlugIn {
+	protected final static String[] sources = {
+		"Directory", "Current stack"
+	};
+
+	public int width = 400, height = 400;
+	public boolean labelWithTitle;
+	public int threads = Math.max(1, Prefs.getThreads());
+
+	protected int done, failed;
+
+	public void run(String arg) {
+		GenericDialog gd = new GenericDialog("Prettify Wiki Screenshots");
+		gd.addChoice("Source", sources, sources[0]);
+		gd.addStringField("Input_directory", "", 30);
+		gd.addStringField("Output_directory", "", 30);
+		gd.addNumericField("Width", width, 0);
+		gd.addNumericField("Height", height, 0);
+		gd.addCheckbox("Label_with_title", labelWithTitle);
+		gd.addNumericField("Parallel_images", threads, 0);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+
+		int source = gd.getNextChoiceIndex();
+		String input = gd.getNextString();
+		File output = new File(gd.getNextString());
+		width = (int)gd.getNextNumber();
+		height = (int)gd.getNextNumber();
+		labelWithTitle = gd.getNextBoolean();
+		threads = Math.max(1, (int)gd.getNextNumber());
+		if (width < 1 || height < 1) {
+			IJ.error("Invalid size: " + width + "x" + height);
+			return;
+		}
+		if (!output.isDirectory() && !output.mkdirs()) {
+			IJ.error("Could not make directory " + output);
+			return;
+		}
+
+		if (source == 0) {
+			File directory = new File(input);
+			if (!directory.isDirectory()) {
+				IJ.error("Not a directory: " + input);
+				return;
+			}
+			prettify(directory, output);
+		}
+		else {
+			ImagePlus imp = WindowManager.getCurrentImage();
+			if (imp == null) {
+				IJ.error("No image is open");
+				return;
+			}
+			prettify(imp.getStack(), output);
+		}
+		IJ.showStatus("Prettified " + done + " screenshot(s)"
+			+ (failed > 0 ? ", " + failed + " failed" : ""));
+	}
+
+	/* Prettifies all images in the given directory */
+	public void prettify(File directory, File output) {
+		List<Item> items = new ArrayList<Item>();
+		String[] names = directory.list();
+		if (names != null) {
+			Arrays.sort(names);
+			for (String name : names) {
+				File file = new File(directory, name);
+				if (!name.startsWith(".") && file.isFile())
+					items.add(new FileItem(file));
+			}
+		}
+		prettify(items, output);
+	}
+
+	/* Prettifies all slices of the given stack */
+	public void prettify(ImageStack stack, File output) {
+		List<Item> items = new ArrayList<Item>();
+		int digits = String.valueOf(stack.getSize()).length();
+		for (int i = 1; i <= stack.getSize(); i++) {
+			String title = stack.getShortSliceLabel(i);
+			if (title == null || title.equals(""))
+				title = String.format("slice-%0" + digits + "d", i);
+			items.add(new SliceItem(stack, i, title));
+		}
+		prettify(items, output);
+	}
+
+	protected void prettify(List<Item> items, File output) {
+		done = failed = 0;
+		if (items.isEmpty())
+			return;
+		final File[] files = getOutputFiles(items, output);
+		ExecutorService pool = Executors.newFixedThreadPool(
+			Math.min(threads, items.size()),
+			MediaWikiClient.daemonThreads("prettify"));
+		CompletionService<File> results =
+			new ExecutorCompletionService<File>(pool);
+		try {
+			for (int i = 0; i < files.length; i++) {
+				final Item item = items.get(i);
+				final File file = files[i];
+				results.submit(new Callable<File>() {
+					public File call() throws IOException {
+						return prettify(item, file);
+					}
+				});
+			}
+			for (int i = 0; i < items.size(); i++) {
+				try {
+					File file = results.take().get();
+					if (file == null)
+						failed++;
+					else
+						done++;
+				} catch (ExecutionException e) {
+					failed++;
+					IJ.log("Could not prettify: "
+						+ e.getCause().getMessage());
+				}
+				IJ.showProgress(i + 1, items.size());
+			}
+		} catch (InterruptedException e) {
+			IJ.log("Interrupted after " + done + " screenshot(s)");
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/*
+	 * Returns one PNG per item, named after its title (which has no
+	 * extension): characters not allowed in file names are replaced, and
+	 * names already taken get a number (name-2.png).
+	 */
+	protected static File[] getOutputFiles(List<Item> items, File output) {
+		File[] result = new File[items.size()];
+		Set<String> used = new HashSet<String>();
+		for (int i = 0; i < result.length; i++) {
+			String name = toFileName(items.get(i).getTitle());
+			String unique = name;
+			// case-insensitive, for Windows' and macOS' sake
+			for (int n = 2; !used.add(unique.toLowerCase()); n++)
+				unique = name + "-" + n;
+			result[i] = new File(output, unique + ".png");
+		}
+		return result;
+	}
+
+	protected static String toFileName(String title) {
+		String name = title.replaceAll("[/\\\\:*?\"<>|\\p{Cntrl}]", "_")
+			.trim().replaceFirst("^\\.+", "_");
+		return name.equals("") ? "screenshot" : name;
+	}
+
+	/* Renders one item and writes it; returns null if it is no image */
+	protected File prettify(Item item, File file) throws IOException {
+		ImageProcessor ip = item.getProcessor();
+		if (ip == null) {
+			IJ.log("Skipping " + item.getTitle() + ": not an image");
+			return null;
+		}
+		Prettify_Wiki_Screenshot prettifier = new Prettify_Wiki_Screenshot();
+		prettifier.width = width;
+		prettifier.height = height;
+		if (labelWithTitle)
+			prettifier.label = item.getTitle().replace('_', ' ');
+		ImagePlus result = prettifier.prettify(ip);
+
+		OutputStream out = new BufferedOutputStream(
+			new FileOutputStream(file));
+		try {
+			new PNGEncoder().write(result.getProcessor(), out);
+		} finally {
+			out.close();
+		}
+		IJ.showStatus("Wrote " + file.getName());
+		return file;
+	}
+
+	protected interface Item {
+		String getTitle();
+		ImageProcessor getProcessor();
+	}
+
+	protected static class FileItem implements Item {
+		protected final File file;
+
+		public FileItem(File file) {
+			this.file = file;
+		}
+
+		public String getTitle() {
+			String name = file.getName();
+			int dot = name.lastIndexOf('.');
+			return dot > 0 ? name.substring(0, dot) : name;
+		}
+
+		public ImageProcessor getProcessor() {
+			ImagePlus imp = IJ.openImage(file.getPath());
+			return imp == null ? null : imp.getProcessor();
+		}
+	}
+
+	protected static class SliceItem implements Item {
+		protected final ImageStack stack;
+		protected final int slice;
+		protected final String title;
+
+		public SliceItem(ImageStack stack, int slice, String title) {
+			this.stack = stack;
+			this.slice = slice;
+			this.title = title;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public ImageProcessor getProcessor() {
+			// ImageStack is not thread-safe
+			synchronized (stack) {
+				return stack.getProcessor(slice);
+			}
+		}
+	}
+}
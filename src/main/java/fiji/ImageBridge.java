@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * Fiji Developer plugin for Fiji.
+ * %%
+ * Copyright (C) 2009 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Views ImageJ processors as BufferedImages and vice versa, sharing the
+ * pixel arrays instead of copying them.
+ *
+ * Changes to one side show on the other. Both methods return null for
+ * layouts they cannot share; callers then need to fall back to copying.
+ */
+public class ImageBridge {
+	protected final static int RED = 0xff0000, GREEN = 0xff00, BLUE = 0xff;
+
+	/* Returns an RGB, grayscale or indexed view of 8-bit and RGB images */
+	public static BufferedImage toBufferedImage(ImageProcessor ip) {
+		int width = ip.getWidth(), height = ip.getHeight();
+		Object pixels = ip.getPixels();
+		if (pixels instanceof int[]) {
+			DataBufferInt buffer = new DataBufferInt((int[])pixels,
+					width * height);
+			SampleModel model = new SinglePixelPackedSampleModel(
+					DataBuffer.TYPE_INT, width, height,
+					new int[] { RED, GREEN, BLUE });
+			return new BufferedImage(new DirectColorModel(24,
+						RED, GREEN, BLUE),
+					Raster.createWritableRaster(model, buffer,
+						null), false, null);
+		}
+		if (!(pixels instanceof byte[]))
+			return null;
+		DataBufferByte buffer = new DataBufferByte((byte[])pixels,
+				width * height);
+		WritableRaster raster = Raster.createWritableRaster(
+				new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE,
+					width, height, 1, width, new int[] { 0 }),
+				buffer, null);
+		ColorModel colorModel;
+		if (ip.isDefaultLut())
+			colorModel = new ComponentColorModel(
+				ColorSpace.getInstance(ColorSpace.CS_GRAY),
+				new int[] { 8 }, false, true,
+				Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+		else if (ip.getColorModel() instanceof IndexColorModel)
+			colorModel = ip.getColorModel();
+		else
+			return null;
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	/*
+	 * Returns a processor for RGB images stored one int per pixel (as
+	 * the Robot's screen captures are) and for 8-bit grayscale images.
+	 */
+	public static ImageProcessor toImageProcessor(BufferedImage image) {
+		Raster raster = image.getRaster();
+		int width = image.getWidth(), height = image.getHeight();
+		if (raster.getMinX() != 0 || raster.getMinY() != 0 ||
+				raster.getSampleModelTranslateX() != 0 ||
+				raster.getSampleModelTranslateY() != 0)
+			return null;
+		DataBuffer buffer = raster.getDataBuffer();
+		if (buffer.getNumBanks() != 1 || buffer.getOffset() != 0)
+			return null;
+		SampleModel model = raster.getSampleModel();
+
+		if (buffer instanceof DataBufferInt &&
+				model instanceof SinglePixelPackedSampleModel) {
+			int[] masks = ((SinglePixelPackedSampleModel)model)
+				.getBitMasks();
+			if (((SinglePixelPackedSampleModel)model)
+					.getScanlineStride() != width ||
+					masks.length < 3 || masks[0] != RED ||
+					masks[1] != GREEN || masks[2] != BLUE)
+				return null;
+			return new ColorProcessor(width, height,
+					((DataBufferInt)buffer).getData());
+		}
+
+		if (buffer instanceof DataBufferByte &&
+				model instanceof PixelInterleavedSampleModel &&
+				image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+			PixelInterleavedSampleModel interleaved =
+				(PixelInterleavedSampleModel)model;
+			if (interleaved.getPixelStride() != 1 ||
+					interleaved.getScanlineStride() != width)
+				return null;
+			return new ByteProcessor(width, height,
+					((DataBufferByte)buffer).getData(), null);
+		}
+		return null;
+	}
+}
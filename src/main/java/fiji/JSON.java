@@ -0,0 +1,235 @@
+/*-
+ * #%L
+ * Fiji Developer plugin for Fiji.
+ * %%
+ * Copyright (C) 2009 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal JSON reader for the responses of MediaWiki's api.php.
+ *
+ * Objects become Maps, arrays become Lists, numbers become Longs or
+ * Doubles.
+ */
+public class JSON {
+	protected final CharSequence text;
+	protected int pos;
+
+	protected JSON(CharSequence text) {
+		this.text = text;
+	}
+
+	public static Object parse(CharSequence text) {
+		JSON json = new JSON(text);
+		Object result = json.value();
+		json.skipWhitespace();
+		if (json.pos < text.length())
+			throw json.error("Trailing garbage");
+		return result;
+	}
+
+	/**
+	 * Walks down a path of object keys and returns what is found there,
+	 * or null.
+	 */
+	public static Object get(Object json, String... path) {
+		for (String key : path) {
+			if (!(json instanceof Map))
+				return null;
+			json = ((Map<?, ?>)json).get(key);
+		}
+		return json;
+	}
+
+	public static String getString(Object json, String... path) {
+		Object result = get(json, path);
+		return result == null ? null : result.toString();
+	}
+
+	public static long getLong(Object json, long defaultValue,
+			String... path) {
+		Object result = get(json, path);
+		return result instanceof Number ?
+			((Number)result).longValue() : defaultValue;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static List<Object> getList(Object json, String... path) {
+		Object result = get(json, path);
+		return result instanceof List ? (List<Object>)result : null;
+	}
+
+	protected Object value() {
+		skipWhitespace();
+		if (pos >= text.length())
+			throw error("Unexpected end");
+		char c = text.charAt(pos);
+		switch (c) {
+		case '{': return object();
+		case '[': return array();
+		case '"': return string();
+		case 't': return literal("true", Boolean.TRUE);
+		case 'f': return literal("false", Boolean.FALSE);
+		case 'n': return literal("null", null);
+		default:
+			if (c == '-' || (c >= '0' && c <= '9'))
+				return number();
+			throw error("Unexpected '" + c + "'");
+		}
+	}
+
+	protected Map<String, Object> object() {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		pos++;
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+			return result;
+		}
+		for (;;) {
+			skipWhitespace();
+			if (peek() != '"')
+				throw error("Expected a key");
+			String key = string();
+			skipWhitespace();
+			expect(':');
+			result.put(key, value());
+			skipWhitespace();
+			if (peek() == '}') {
+				pos++;
+				return result;
+			}
+			expect(',');
+		}
+	}
+
+	protected List<Object> array() {
+		List<Object> result = new ArrayList<Object>();
+		pos++;
+		skipWhitespace();
+		if (peek() == ']') {
+			pos++;
+			return result;
+		}
+		for (;;) {
+			result.add(value());
+			skipWhitespace();
+			if (peek() == ']') {
+				pos++;
+				return result;
+			}
+			expect(',');
+		}
+	}
+
+	protected String string() {
+		StringBuilder builder = new StringBuilder();
+		pos++;
+		for (;;) {
+			if (pos >= text.length())
+				throw error("Unterminated string");
+			char c = text.charAt(pos++);
+			if (c == '"')
+				return builder.toString();
+			if (c != '\\') {
+				builder.append(c);
+				continue;
+			}
+			if (pos >= text.length())
+				throw error("Unterminated string");
+			c = text.charAt(pos++);
+			switch (c) {
+			case 'b': builder.append('\b'); break;
+			case 'f': builder.append('\f'); break;
+			case 'n': builder.append('\n'); break;
+			case 'r': builder.append('\r'); break;
+			case 't': builder.append('\t'); break;
+			case 'u':
+				if (pos + 4 > text.length())
+					throw error("Invalid escape");
+				try {
+					builder.append((char)Integer.parseInt(text
+						.subSequence(pos, pos + 4)
+						.toString(), 16));
+				} catch (NumberFormatException e) {
+					throw error("Invalid escape");
+				}
+				pos += 4;
+				break;
+			default: builder.append(c);
+			}
+		}
+	}
+
+	protected Number number() {
+		int start = pos;
+		boolean isDouble = false;
+		while (pos < text.length()) {
+			char c = text.charAt(pos);
+			if (c == '.' || c == 'e' || c == 'E')
+				isDouble = true;
+			else if (c != '-' && c != '+' && (c < '0' || c > '9'))
+				break;
+			pos++;
+		}
+		String number = text.subSequence(start, pos).toString();
+		try {
+			if (!isDouble)
+				return Long.valueOf(number);
+			return Double.valueOf(number);
+		} catch (NumberFormatException e) {
+			throw error("Invalid number: " + number);
+		}
+	}
+
+	protected Object literal(String literal, Object value) {
+		if (pos + literal.length() > text.length() ||
+				!literal.equals(text.subSequence(pos,
+					pos + literal.length()).toString()))
+			throw error("Unexpected literal");
+		pos += literal.length();
+		return value;
+	}
+
+	protected void skipWhitespace() {
+		while (pos < text.length() &&
+				Character.isWhitespace(text.charAt(pos)))
+			pos++;
+	}
+
+	protected char peek() {
+		return pos < text.length() ? text.charAt(pos) : 0;
+	}
+
+	protected void expect(char c) {
+		if (peek() != c)
+			throw error("Expected '" + c + "'");
+		pos++;
+	}
+
+	protected IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at position "
+			+ pos);
+	}
+}
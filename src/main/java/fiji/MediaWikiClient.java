@@ -47,28 +47,61 @@ package fiji;
 import ij.IJ;
 import ij.plugin.BrowserLauncher;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
 
 public class MediaWikiClient {
-	final String wikiBaseURI;
+	final String wikiBaseURI, apiURI;
 	String sessionID, domain, loginToken;
 
 	public MediaWikiClient() {
@@ -77,6 +110,159 @@ public class MediaWikiClient {
 
 	public MediaWikiClient(String wikiBaseURI) {
 		this.wikiBaseURI = wikiBaseURI;
+		apiURI = wikiBaseURI.substring(0,
+				wikiBaseURI.lastIndexOf('/') + 1) + "api.php";
+	}
+
+	/**
+	 * Opens the HTTP connections for a client, and takes them back when
+	 * the response has been consumed.
+	 */
+	public interface Transport {
+		HttpURLConnection openConnection(URL url) throws IOException;
+		void release(HttpURLConnection connection);
+	}
+
+	/**
+	 * The default transport.
+	 *
+	 * All connections share one SSL socket factory and one hostname
+	 * verifier, so that the JDK can hand out idle keep-alive connections
+	 * and resume TLS sessions instead of doing a full handshake for every
+	 * request. The number of requests in flight is bounded.
+	 */
+	public static class PooledTransport implements Transport {
+		protected final Semaphore slots;
+		protected final SSLSocketFactory socketFactory;
+		protected int connectTimeout, readTimeout;
+
+		protected final static HostnameVerifier hostnameVerifier =
+			new HostnameVerifier() {
+				public boolean verify(String hostname,
+						SSLSession session) {
+					return true;
+				}
+			};
+
+		public PooledTransport(int maxConnections,
+				int connectTimeout, int readTimeout) {
+			slots = new Semaphore(maxConnections, true);
+			socketFactory =
+				HttpsURLConnection.getDefaultSSLSocketFactory();
+			this.connectTimeout = connectTimeout;
+			this.readTimeout = readTimeout;
+		}
+
+		public void setConnectTimeout(int milliseconds) {
+			connectTimeout = milliseconds;
+		}
+
+		public void setReadTimeout(int milliseconds) {
+			readTimeout = milliseconds;
+		}
+
+		public HttpURLConnection openConnection(URL url)
+				throws IOException {
+			try {
+				slots.acquire();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted "
+					+ "while waiting for a connection");
+			}
+			try {
+				HttpURLConnection conn =
+					(HttpURLConnection)url.openConnection();
+				if (conn instanceof HttpsURLConnection) {
+					HttpsURLConnection secure =
+						(HttpsURLConnection)conn;
+					secure.setSSLSocketFactory(socketFactory);
+					secure.setHostnameVerifier(hostnameVerifier);
+				}
+				conn.setConnectTimeout(connectTimeout);
+				conn.setReadTimeout(readTimeout);
+				return conn;
+			} catch (IOException e) {
+				slots.release();
+				throw e;
+			} catch (RuntimeException e) {
+				slots.release();
+				throw e;
+			}
+		}
+
+		public void release(HttpURLConnection connection) {
+			try {
+				// an unread error body keeps the socket from being reused
+				InputStream error = connection.getErrorStream();
+				if (error != null) {
+					byte[] buffer = new byte[4096];
+					while (error.read(buffer) >= 0)
+						; /* discard */
+					error.close();
+				}
+			} catch (IOException e) {
+				/* this socket will not be reused, then */
+			} finally {
+				slots.release();
+			}
+		}
+	}
+
+	protected static Transport defaultTransport =
+		new PooledTransport(4, 30000, 120000);
+	protected Transport transport = defaultTransport;
+
+	public Transport getTransport() {
+		return transport;
+	}
+
+	public void setTransport(Transport transport) {
+		this.transport = transport;
+	}
+
+	protected static WikiRateController defaultRateController =
+		new WikiRateController(2, 4);
+	protected WikiRateController rateController = defaultRateController;
+	protected int maxAttempts = 5;
+	/* seconds of replication lag at which api.php should refuse requests */
+	protected int maxlag = 5;
+
+	public WikiRateController getRateController() {
+		return rateController;
+	}
+
+	public void setRateController(WikiRateController rateController) {
+		this.rateController = rateController;
+	}
+
+	public static class HTTPException extends IOException {
+		private static final long serialVersionUID = 1L;
+		public final int code;
+
+		public HTTPException(int code) {
+			super("HTTP code: " + code);
+			this.code = code;
+		}
+	}
+
+	/* The wiki asked us to slow down */
+	public static class ThrottledException extends HTTPException {
+		private static final long serialVersionUID = 1L;
+		public final long retryAfterMillis;
+
+		public ThrottledException(int code, long retryAfterMillis) {
+			super(code);
+			this.retryAfterMillis = retryAfterMillis;
+		}
+	}
+
+	/* api.php answered with something other than JSON */
+	public static class InvalidAPIResponseException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public InvalidAPIResponseException(String message) {
+			super(message);
+		}
 	}
 
 	boolean hasSessionKey() {
@@ -121,6 +307,7 @@ public class MediaWikiClient {
 				sendRequest(getVars, postVars);
 			loginToken = null;
 			loggedIn = response.indexOf("Login error") < 0;
+			invalidateEditToken();
 			if (IJ.debugMode)
 				debugShow(response);
 			return loggedIn;
@@ -135,6 +322,7 @@ public class MediaWikiClient {
 			String[] getVars = {
 				"title", "Special:Userlogout"
 			};
+			invalidateEditToken();
 			String response = sendRequest(getVars, null);
 			String expect = "You are now logged out.";
 			loggedIn = response.indexOf(expect) < 0;
@@ -144,25 +332,123 @@ public class MediaWikiClient {
 	}
 
 	protected String getFormVariable(String html, String name) {
-		Pattern pattern = Pattern.compile(".*<input type=.hidden. "
-			+ "value=\"([^\"]*)\" name=\"" + name
-			+ "\" />.*", Pattern.DOTALL);
-		Matcher matcher = pattern.matcher(html);
-		if (matcher.matches())
-			return matcher.group(1);
-		pattern = Pattern.compile(".*<input name=\"" + name
-			+ "\" type=.hidden. value=\"([^\"]*)\" />.*",
-			Pattern.DOTALL);
-		matcher = pattern.matcher(html);
-		if (matcher.matches())
-			return matcher.group(1);
-		pattern = Pattern.compile(".*<input type=.hidden. "
-			+ "name=\"" + name + "\" value=\"([^\"]*)\" />.*",
-			Pattern.DOTALL);
-		matcher = pattern.matcher(html);
-		if (matcher.matches())
-			return matcher.group(1);
-		return null;
+		try {
+			return getFormVariables(new StringReader(html), name)
+				.get(name);
+		} catch (IOException e) {
+			// cannot happen with a StringReader
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Finds the values of the given hidden <input> fields in one pass,
+	 * regardless of the order of the attributes.
+	 *
+	 * Reading stops as soon as all the fields have been found.
+	 */
+	protected static Map<String, String> getFormVariables(Reader reader,
+			String... names) throws IOException {
+		Set<String> wanted = new HashSet<String>(Arrays.asList(names));
+		Map<String, String> result = new HashMap<String, String>();
+		Map<String, String> attributes = new HashMap<String, String>();
+		StringBuilder html = new StringBuilder();
+		char[] buffer = new char[1 << 13];
+		int pos = 0;
+		boolean eof = false;
+		while (!wanted.isEmpty()) {
+			int start = html.indexOf("<input", pos);
+			int end = -1;
+			if (start >= 0) {
+				attributes.clear();
+				end = parseTag(html, start + 6, attributes);
+			}
+			if (end < 0) {
+				if (eof)
+					break;
+				// keep only what might be the start of a tag
+				if (start < 0)
+					start = Math.max(pos, html.length() - 5);
+				html.delete(0, start);
+				pos = 0;
+				int len = reader.read(buffer);
+				if (len < 0)
+					eof = true;
+				else
+					html.append(buffer, 0, len);
+				continue;
+			}
+			pos = end;
+			String name = attributes.get("name");
+			if ("hidden".equalsIgnoreCase(attributes.get("type")) &&
+					wanted.remove(name))
+				result.put(name, attributes.get("value"));
+		}
+		return result;
+	}
+
+	/*
+	 * Parses the attributes of a tag, starting after the tag name. Returns
+	 * the offset after the closing '>', or -1 if the tag is incomplete.
+	 */
+	protected static int parseTag(CharSequence html, int i,
+			Map<String, String> attributes) {
+		int n = html.length();
+		for (;;) {
+			while (i < n && Character.isWhitespace(html.charAt(i)))
+				i++;
+			if (i >= n)
+				return -1;
+			char c = html.charAt(i);
+			if (c == '>')
+				return i + 1;
+			if (c == '/') {
+				i++;
+				continue;
+			}
+
+			int nameStart = i;
+			while (i < n && (c = html.charAt(i)) != '=' && c != '>'
+					&& c != '/' && !Character.isWhitespace(c))
+				i++;
+			String name = html.subSequence(nameStart, i).toString()
+				.toLowerCase();
+			while (i < n && Character.isWhitespace(html.charAt(i)))
+				i++;
+			if (i >= n)
+				return -1;
+			if (html.charAt(i) != '=') {
+				attributes.put(name, "");
+				continue;
+			}
+
+			i++;
+			while (i < n && Character.isWhitespace(html.charAt(i)))
+				i++;
+			if (i >= n)
+				return -1;
+			char quote = html.charAt(i);
+			int valueStart, valueEnd;
+			if (quote == '"' || quote == '\'') {
+				valueStart = ++i;
+				while (i < n && html.charAt(i) != quote)
+					i++;
+				if (i >= n)
+					return -1;
+				valueEnd = i++;
+			}
+			else {
+				valueStart = i;
+				while (i < n && (c = html.charAt(i)) != '>'
+						&& !Character.isWhitespace(c))
+					i++;
+				if (i >= n)
+					return -1;
+				valueEnd = i;
+			}
+			attributes.put(name, html.subSequence(valueStart,
+						valueEnd).toString());
+		}
 	}
 
 	public boolean uploadPage(String title,
@@ -173,62 +459,278 @@ public class MediaWikiClient {
 		return result != null;
 	}
 
+	/*
+	 * Saves go through api.php when the wiki offers it; previews always use
+	 * index.php, as callers expect the skinned preview page.
+	 */
 	public String uploadOrPreviewPage(String title, String contents,
 			String comment, boolean previewOnly) {
+		if (!previewOnly && hasAPI())
+			return editViaAPI(title, contents, comment);
+		return editViaForm(title, contents, comment, previewOnly);
+	}
+
+	/*
+	 * The CSRF token of the current session, shared by api.php and the
+	 * index.php forms. It is dropped when logging in or out, and when the
+	 * wiki rejects it.
+	 */
+	protected volatile String editToken;
+	/* wpEdittime and wpAutoSummary of the edit forms fetched so far */
+	protected Map<String, String[]> editForms =
+		new ConcurrentHashMap<String, String[]>();
+
+	public void invalidateEditToken() {
+		editToken = null;
+		editForms.clear();
+	}
+
+	protected static boolean isBadToken(Object apiResponse) {
+		return "badtoken".equals(JSON.getString(apiResponse,
+					"error", "code"));
+	}
+
+	protected static boolean isSessionFailure(String html) {
+		return html.indexOf("loss of session data") >= 0;
+	}
+
+	protected String editViaAPI(String title, String contents,
+			String comment) {
+		String[] getVars = {
+			"action", "edit"
+		};
 		try {
-			String[] getVars = {
-				"title", title,
-				"action", "edit"
-			};
-			String response = sendRequest(getVars, null);
-			String time = getFormVariable(response, "wpEdittime");
-			String token = getFormVariable(response, "wpEditToken");
-			String summary =
-				getFormVariable(response, "wpAutoSummary");
-			if (time == null || token == null || summary == null) {
-				System.err.println("time: " + time + ", token: "
-					+ token + ", summary: " + summary);
-				if (IJ.debugMode)
-					debugShow(response);
+			for (int attempt = 0; ; attempt++) {
+				String token = getAPIEditToken();
+				if (token == null)
+					return null;
+				String[] postVars = {
+					"title", title,
+					"text", contents,
+					"summary", comment,
+					"recreate", "1",
+					"token", token
+				};
+				String text = sendAPIRequestText(getVars,
+						postVars, null);
+				Object result = parseAPIResponse(text);
+				if ("Success".equals(JSON.getString(result,
+						"edit", "result")))
+					return text;
+				if (attempt == 0 && isBadToken(result)) {
+					invalidateEditToken();
+					continue;
+				}
+				System.err.println("Failed: " + text);
 				return null;
 			}
+		} catch (IOException e) { e.printStackTrace(); }
+		return null;
+	}
+
+	protected String editViaForm(String title, String contents,
+			String comment, boolean previewOnly) {
+		try {
+			for (int attempt = 0; ; attempt++) {
+				String token = editToken;
+				String[] form = editForms.get(title);
+				if (token == null || form == null) {
+					form = getEditForm(title);
+					if (form == null)
+						return null;
+					token = form[2];
+					editToken = token;
+					editForms.put(title, form);
+				}
 
-			getVars = new String[] {
-				"title", title,
+				String[] getVars = {
+					"title", title,
 					"action", "submit"
-			};
-			String[] postVars = new String[] {
-				"wpSave", "Save page",
-				"wpTextbox1", contents,
-				"wpSummary", comment,
-				"wpEdittime", time,
-				"wpEditToken", token,
-				"wpAutoSummary", summary,
-				"wpRecreate", "1"
-			};
-			if (previewOnly) {
-				postVars[0] = "wpPreview";
-				postVars[1] = "Show preview";
+				};
+				String[] postVars = new String[] {
+					"wpSave", "Save page",
+					"wpTextbox1", contents,
+					"wpSummary", comment,
+					"wpEdittime", form[0],
+					"wpEditToken", token,
+					"wpAutoSummary", form[1],
+					"wpRecreate", "1"
+				};
+				if (previewOnly) {
+					postVars[0] = "wpPreview";
+					postVars[1] = "Show preview";
+				}
+				String result = sendRequest(getVars, postVars);
+				if (attempt == 0 && isSessionFailure(result)) {
+					invalidateEditToken();
+					continue;
+				}
+				if (!previewOnly)
+					// the page changed; the next save needs a new wpEdittime
+					editForms.remove(title);
+				return result;
 			}
-			return sendRequest(getVars, postVars);
 		} catch (IOException e) { e.printStackTrace(); }
 		return null;
 	}
 
+	/* Returns wpEdittime, wpAutoSummary and wpEditToken, or null */
+	protected String[] getEditForm(String title) throws IOException {
+		String[] getVars = {
+			"title", title,
+			"action", "edit"
+		};
+		Reader reader = openResponseReader(getVars, null);
+		Map<String, String> fields;
+		try {
+			fields = getFormVariables(reader, "wpEdittime",
+					"wpEditToken", "wpAutoSummary");
+		} finally {
+			reader.close();
+		}
+		String time = fields.get("wpEdittime");
+		String token = fields.get("wpEditToken");
+		String summary = fields.get("wpAutoSummary");
+		if (time == null || token == null || summary == null) {
+			System.err.println("time: " + time + ", token: "
+				+ token + ", summary: " + summary);
+			return null;
+		}
+		return new String[] { time, summary, token };
+	}
+
 	public boolean uploadFile(String fileName, String summary,
 			File file) {
+		return uploadFileContents(fileName, summary, file);
+	}
+
+	/**
+	 * Uploads a file that is needed only for the upload, and deletes it.
+	 *
+	 * If a large upload is interrupted, the file is kept until the upload
+	 * is resumed (possibly from another file with the same contents), or
+	 * until its stash has expired.
+	 */
+	public boolean uploadTemporaryFile(String fileName, String summary,
+			File file) {
+		if (hasAPI() && file.length() > chunkedUploadThreshold)
+			return uploadInChunks(fileName, summary, file, true);
 		try {
-			byte[] buffer = new byte[(int)file.length()];
-			FileInputStream in = new FileInputStream(file);
-			in.read(buffer);
-			in.close();
-			return uploadFile(fileName, summary, buffer);
-		} catch (IOException e) { e.printStackTrace(); }
-		return false;
+			return uploadFileContents(fileName, summary, file);
+		} finally {
+			file.delete();
+		}
 	}
 
 	public boolean uploadFile(String fileName, String summary,
 			byte[] contents) {
+		return uploadFileContents(fileName, summary, contents);
+	}
+
+	public boolean uploadFile(String fileName, String summary,
+			StreamingContents contents) {
+		return uploadFileContents(fileName, summary, contents);
+	}
+
+	/* contents is either a byte[], a File or StreamingContents */
+	protected boolean uploadFileContents(String fileName, String summary,
+			Object contents) {
+		if (contents instanceof StreamingContents &&
+				((StreamingContents)contents).getLength() < 0) {
+			// request bodies are always sent with a Content-Length
+			try {
+				return uploadTemporaryFile(fileName, summary,
+						spool((StreamingContents)contents));
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+		if (hasAPI())
+			return uploadViaAPI(fileName, summary, contents);
+		return uploadViaForm(fileName, summary, contents);
+	}
+
+	/* Writes contents of unknown length into a temporary file */
+	protected static File spool(StreamingContents contents)
+			throws IOException {
+		File file = File.createTempFile("wiki-upload", ".tmp");
+		try {
+			OutputStream out = new BufferedOutputStream(
+					new FileOutputStream(file), 1 << 16);
+			try {
+				contents.writeTo(out);
+			} finally {
+				out.close();
+			}
+			return file;
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		} catch (RuntimeException e) {
+			file.delete();
+			throw e;
+		}
+	}
+
+	/* files larger than this are sent in chunks */
+	protected long chunkedUploadThreshold = 2 * WikiChunkedUpload.CHUNK_SIZE;
+
+	protected boolean uploadViaAPI(String fileName, String summary,
+			Object contents) {
+		if (contents instanceof File &&
+				((File)contents).length() > chunkedUploadThreshold)
+			return uploadInChunks(fileName, summary, (File)contents,
+					false);
+		String[] getVars = {
+			"action", "upload"
+		};
+		Object[] fileVars = {
+			"file", fileName, contents
+		};
+		try {
+			for (int attempt = 0; ; attempt++) {
+				String token = getAPIEditToken();
+				if (token == null)
+					return false;
+				String[] postVars = {
+					"filename", fileName,
+					"comment", summary,
+					"ignorewarnings", "1",
+					"token", token
+				};
+				String text = sendAPIRequestText(getVars,
+						postVars, fileVars);
+				Object result = parseAPIResponse(text);
+				if ("Success".equals(JSON.getString(result,
+						"upload", "result")))
+					return true;
+				if (attempt == 0 && isBadToken(result)) {
+					invalidateEditToken();
+					continue;
+				}
+				System.err.println("Failed: " + text);
+				return false;
+			}
+		} catch (IOException e) { e.printStackTrace(); }
+		return false;
+	}
+
+	protected boolean uploadInChunks(String fileName, String summary,
+			File file, boolean temporary) {
+		WikiChunkedUpload upload = new WikiChunkedUpload(this, fileName,
+				summary, file);
+		upload.temporary = temporary;
+		try {
+			return upload.run();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	protected boolean uploadViaForm(String fileName, String summary,
+			Object contents) {
 		String[] getVars = {
 			"title", "Special:Upload"
 		};
@@ -257,6 +759,438 @@ public class MediaWikiClient {
 		return false;
 	}
 
+	protected Boolean hasAPI;
+
+	/*
+	 * Returns the CSRF token from api.php, or null if the wiki does not
+	 * support the Action API (in which case index.php is used from then
+	 * on) or could not be asked.
+	 */
+	protected String getAPIEditToken() {
+		if (Boolean.FALSE.equals(hasAPI))
+			return null;
+		String token = editToken;
+		if (token != null && hasAPI != null)
+			return token;
+		String[] getVars = {
+			"action", "query",
+			"meta", "tokens",
+			"type", "csrf"
+		};
+		try {
+			Object result = sendAPIRequest(getVars, null);
+			token = JSON.getString(result,
+					"query", "tokens", "csrftoken");
+			hasAPI = Boolean.valueOf(token != null);
+			editToken = token;
+			return token;
+		} catch (IOException e) {
+			if (IJ.debugMode)
+				e.printStackTrace();
+			if (isMissingAPI(e))
+				hasAPI = Boolean.FALSE;
+			return null;
+		}
+	}
+
+	/*
+	 * Returns whether the wiki offers api.php. If that is still unknown
+	 * because the wiki could not be reached, this returns false, but asks
+	 * again next time.
+	 */
+	protected boolean hasAPI() {
+		if (hasAPI == null)
+			getAPIEditToken();
+		return Boolean.TRUE.equals(hasAPI);
+	}
+
+	/* Returns whether the wiki answered that there is no api.php */
+	protected static boolean isMissingAPI(IOException e) {
+		if (e instanceof InvalidAPIResponseException)
+			return true;
+		if (!(e instanceof HTTPException) ||
+				e instanceof ThrottledException)
+			return false;
+		int code = ((HTTPException)e).code;
+		return code == 404 || code == 410;
+	}
+
+	/*
+	 * Sends a read-only query to api.php, without asking for a token
+	 * first: the query itself tells whether there is an api.php. Returns
+	 * null if there is none.
+	 */
+	protected Object sendAPIQuery(String[] getVars) throws IOException {
+		if (Boolean.FALSE.equals(hasAPI))
+			return null;
+		try {
+			Object response = sendAPIRequest(getVars, null);
+			if (hasAPI == null)
+				hasAPI = Boolean.TRUE;
+			return response;
+		} catch (IOException e) {
+			if (!isMissingAPI(e))
+				throw e;
+			hasAPI = Boolean.FALSE;
+			return null;
+		}
+	}
+
+	public static class ImageInfo {
+		public final String name;
+		public final boolean exists;
+		public final long size;
+		public final String timestamp, sha1;
+
+		public ImageInfo(String name, boolean exists, long size,
+				String timestamp, String sha1) {
+			this.name = name;
+			this.exists = exists;
+			this.size = size;
+			this.timestamp = timestamp;
+			this.sha1 = sha1;
+		}
+	}
+
+	public final static int MAX_TITLES_PER_QUERY = 50;
+
+	/**
+	 * Looks up many files at once, MAX_TITLES_PER_QUERY per request.
+	 *
+	 * Returns null if the wiki has no api.php; callers then need to fall
+	 * back to looking at the file pages one by one.
+	 */
+	public Map<String, ImageInfo> getImageInfo(List<String> names)
+			throws IOException {
+		if (!hasAPI())
+			return null;
+		Map<String, ImageInfo> result =
+			new LinkedHashMap<String, ImageInfo>();
+		for (int i = 0; i < names.size(); i += MAX_TITLES_PER_QUERY) {
+			List<String> batch = names.subList(i, Math.min(names.size(),
+						i + MAX_TITLES_PER_QUERY));
+			StringBuilder titles = new StringBuilder();
+			for (String name : batch) {
+				if (titles.length() > 0)
+					titles.append('|');
+				titles.append("File:").append(name);
+			}
+			String[] getVars = {
+				"action", "query",
+				"prop", "imageinfo",
+				"iiprop", "size|timestamp|sha1"
+			};
+			String[] postVars = {
+				"titles", titles.toString()
+			};
+			Object response = sendAPIRequest(getVars, postVars);
+			checkAPIError(response);
+
+			Map<String, String> normalized =
+				new HashMap<String, String>();
+			List<Object> list = JSON.getList(response,
+					"query", "normalized");
+			if (list != null)
+				for (Object entry : list)
+					normalized.put(JSON.getString(entry, "from"),
+						JSON.getString(entry, "to"));
+			Map<String, Object> pages = new HashMap<String, Object>();
+			list = JSON.getList(response, "query", "pages");
+			if (list != null)
+				for (Object page : list)
+					pages.put(JSON.getString(page, "title"), page);
+
+			for (String name : batch) {
+				String title = "File:" + name;
+				if (normalized.containsKey(title))
+					title = normalized.get(title);
+				List<Object> info = JSON.getList(pages.get(title),
+						"imageinfo");
+				Object first = info == null || info.isEmpty() ?
+					null : info.get(0);
+				result.put(name, new ImageInfo(name, first != null,
+					JSON.getLong(first, -1, "size"),
+					JSON.getString(first, "timestamp"),
+					JSON.getString(first, "sha1")));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the name of a file on the wiki with the given SHA-1 (in
+	 * hex), or null if there is none or the wiki has no api.php.
+	 */
+	public String findFileBySHA1(String sha1) throws IOException {
+		if (!hasAPI())
+			return null;
+		String[] getVars = {
+			"action", "query",
+			"list", "allimages",
+			"aisha1", sha1,
+			"ailimit", "1"
+		};
+		Object response = sendAPIRequest(getVars, null);
+		checkAPIError(response);
+		List<Object> images = JSON.getList(response,
+				"query", "allimages");
+		if (images == null || images.isEmpty())
+			return null;
+		return JSON.getString(images.get(0), "name");
+	}
+
+	public static class Revision {
+		public final long id;
+		public final String content;
+
+		public Revision(long id, String content) {
+			this.id = id;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * Returns the id of the latest revision of a page, 0 if the page does
+	 * not exist, or -1 if the wiki has no api.php.
+	 */
+	public long getLatestRevisionId(String title) throws IOException {
+		String[] getVars = {
+			"action", "query",
+			"prop", "info",
+			"titles", title
+		};
+		Object response = sendAPIQuery(getVars);
+		if (response == null)
+			return -1;
+		checkAPIError(response);
+		List<Object> pages = JSON.getList(response, "query", "pages");
+		if (pages == null || pages.isEmpty())
+			return 0;
+		return JSON.getLong(pages.get(0), 0, "lastrevid");
+	}
+
+	/**
+	 * Returns the wikitext of the latest revision of a page, or null if the
+	 * wiki has no api.php.
+	 */
+	public Revision getLatestRevision(String title) throws IOException {
+		String[] getVars = {
+			"action", "query",
+			"prop", "revisions",
+			"rvprop", "ids|content",
+			"rvslots", "main",
+			"titles", title
+		};
+		Object response = sendAPIQuery(getVars);
+		if (response == null)
+			return null;
+		checkAPIError(response);
+		List<Object> pages = JSON.getList(response, "query", "pages");
+		List<Object> revisions = pages == null || pages.isEmpty() ?
+			null : JSON.getList(pages.get(0), "revisions");
+		if (revisions == null || revisions.isEmpty())
+			return new Revision(0, "");
+		Object revision = revisions.get(0);
+		String content = JSON.getString(revision,
+				"slots", "main", "content");
+		if (content == null)
+			// before MediaWiki 1.32
+			content = JSON.getString(revision, "content");
+		return new Revision(JSON.getLong(revision, 0, "revid"),
+				content == null ? "" : content);
+	}
+
+	protected static void checkAPIError(Object response)
+			throws IOException {
+		String error = JSON.getString(response, "error", "info");
+		if (error != null)
+			throw new IOException(error);
+	}
+
+	public Object sendAPIRequest(String[] getVars, String[] postVars)
+			throws IOException {
+		return sendAPIRequest(getVars, postVars, null);
+	}
+
+	Object sendAPIRequest(String[] getVars, String[] postVars,
+			Object[] fileVars) throws IOException {
+		return parseAPIResponse(sendAPIRequestText(getVars, postVars,
+					fileVars));
+	}
+
+	/* Sends a request to api.php and returns the unparsed JSON */
+	String sendAPIRequestText(String[] getVars, String[] postVars,
+			Object[] fileVars) throws IOException {
+		String[] vars = new String[(getVars == null ?
+				0 : getVars.length) + 6];
+		if (getVars != null)
+			System.arraycopy(getVars, 0, vars, 0, getVars.length);
+		vars[vars.length - 6] = "format";
+		vars[vars.length - 5] = "json";
+		vars[vars.length - 4] = "formatversion";
+		vars[vars.length - 3] = "2";
+		vars[vars.length - 2] = "maxlag";
+		vars[vars.length - 1] = "" + maxlag;
+
+		ResponseStream in = openResponseStream(apiURI, vars, postVars,
+				fileVars, false);
+		try {
+			return response = readFully(new InputStreamReader(in,
+						in.charset), in.contentLength);
+		} finally {
+			in.close();
+		}
+	}
+
+	protected static Object parseAPIResponse(String json)
+			throws IOException {
+		try {
+			return JSON.parse(json);
+		} catch (IllegalArgumentException e) {
+			throw new InvalidAPIResponseException("Invalid API "
+					+ "response: " + e.getMessage());
+		}
+	}
+
+	protected final static ExecutorService asyncExecutor =
+		createAsyncExecutor();
+	protected final static ScheduledThreadPoolExecutor deadlines =
+		new ScheduledThreadPoolExecutor(1, daemonThreads("deadline"));
+
+	static {
+		deadlines.setRemoveOnCancelPolicy(true);
+	}
+
+	protected static ThreadFactory daemonThreads(final String prefix) {
+		return new ThreadFactory() {
+			final AtomicInteger counter = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "MediaWiki-"
+					+ prefix + "-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/* Uses virtual threads when running on Java 21 or later */
+	protected static ExecutorService createAsyncExecutor() {
+		try {
+			return (ExecutorService)Executors.class
+				.getMethod("newVirtualThreadPerTaskExecutor")
+				.invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool(daemonThreads("async"));
+		}
+	}
+
+	public static ExecutorService getAsyncExecutor() {
+		return asyncExecutor;
+	}
+
+	/**
+	 * Runs a blocking call on the async executor.
+	 *
+	 * If the returned future is cancelled or misses its deadline, the call
+	 * is interrupted. A socket read in progress only gives up when the
+	 * transport's read timeout expires.
+	 */
+	public static <T> CompletableFuture<T> async(final Callable<T> call) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final Future<?> task = asyncExecutor.submit(new Runnable() {
+			public void run() {
+				try {
+					result.complete(call.call());
+				} catch (Throwable t) {
+					result.completeExceptionally(t);
+				}
+			}
+		});
+		result.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T value, Throwable error) {
+				if (error != null)
+					task.cancel(true);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Fails the future with a TimeoutException (and thereby interrupts
+	 * the underlying call) unless it completes within the given time.
+	 */
+	public static <T> CompletableFuture<T> withDeadline(
+			final CompletableFuture<T> future,
+			final long timeout, final TimeUnit unit) {
+		final ScheduledFuture<?> timer = deadlines.schedule(new Runnable() {
+			public void run() {
+				future.completeExceptionally(new TimeoutException(
+					"Request took longer than " + timeout
+					+ " " + unit.toString().toLowerCase()));
+			}
+		}, timeout, unit);
+		future.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T value, Throwable error) {
+				timer.cancel(false);
+			}
+		});
+		return future;
+	}
+
+	public CompletableFuture<String> sendRequestAsync(final String[] getVars,
+			final String[] postVars) {
+		return async(new Callable<String>() {
+			public String call() throws IOException {
+				return sendRequest(getVars, postVars);
+			}
+		});
+	}
+
+	public CompletableFuture<String> findFileBySHA1Async(final String sha1) {
+		return async(new Callable<String>() {
+			public String call() throws IOException {
+				return findFileBySHA1(sha1);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> uploadPageAsync(final String title,
+			final String contents, final String comment) {
+		return async(new Callable<Boolean>() {
+			public Boolean call() {
+				return uploadPage(title, contents, comment);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> uploadFileAsync(final String fileName,
+			final String summary, final File file) {
+		return async(new Callable<Boolean>() {
+			public Boolean call() {
+				return uploadFile(fileName, summary, file);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> uploadFileAsync(final String fileName,
+			final String summary, final byte[] contents) {
+		return async(new Callable<Boolean>() {
+			public Boolean call() {
+				return uploadFile(fileName, summary, contents);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> uploadFileAsync(final String fileName,
+			final String summary, final StreamingContents contents) {
+		return async(new Callable<Boolean>() {
+			public Boolean call() {
+				return uploadFile(fileName, summary, contents);
+			}
+		});
+	}
+
 	public String urlEncode(String text) {
 		try {
 			return URLEncoder.encode(text, "UTF-8");
@@ -272,12 +1206,71 @@ public class MediaWikiClient {
 	}
 
 	String boundary = "---e69de29bb2d1d6434b8b29ae775ad8c2e48c5391";
-	Map<String, String> cookies = new HashMap<String, String>();
-	String response;
+	Map<String, String> cookies = new ConcurrentHashMap<String, String>();
+	/* the last response, for debugging */
+	volatile String response;
 	String sendRequest(String[] getVars, String[] postVars,
 			Object[] fileVars,
 			boolean getSessionKey) throws IOException {
-		String uri = wikiBaseURI;
+		ResponseStream in = openResponseStream(getVars, postVars,
+				fileVars, getSessionKey);
+		String result;
+		try {
+			result = readFully(new InputStreamReader(in,
+						in.charset), in.contentLength);
+		} finally {
+			in.close();
+		}
+		response = result;
+
+		if (getSessionKey) {
+
+			domain = null;
+			int off = result.indexOf("<select name=\"wpDomain\"");
+			if (off > 0) {
+				int i1 = result.indexOf("<option>", off) + 8;
+				int i2 = result.indexOf("</option>", i1);
+				if (i1 > 8 && i2 > 0)
+					domain = result.substring(i1, i2);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Sends a request and returns the undecoded response body.
+	 *
+	 * The caller must close the stream; that hands the connection back to
+	 * the transport.
+	 */
+	public InputStream openResponseStream(String[] getVars,
+			String[] postVars) throws IOException {
+		return openResponseStream(getVars, postVars, null, false);
+	}
+
+	/**
+	 * Sends a request and returns the response body, decoded with the
+	 * charset announced in the Content-Type header.
+	 */
+	public Reader openResponseReader(String[] getVars,
+			String[] postVars) throws IOException {
+		ResponseStream in = openResponseStream(getVars, postVars,
+				null, false);
+		return new InputStreamReader(in, in.charset);
+	}
+
+	ResponseStream openResponseStream(String[] getVars, String[] postVars,
+			Object[] fileVars,
+			boolean getSessionKey) throws IOException {
+		return openResponseStream(wikiBaseURI, getVars, postVars,
+				fileVars, getSessionKey);
+	}
+
+	ResponseStream openResponseStream(String baseURI, String[] getVars,
+			String[] postVars, Object[] fileVars,
+			boolean getSessionKey) throws IOException {
+		String uri = baseURI;
 		if (getVars != null)
 			for (int i = 0; i + 1 < getVars.length; i += 2)
 				uri += (i == 0 ? '?' : '&')
@@ -285,20 +1278,103 @@ public class MediaWikiClient {
 					+ urlEncode(getVars[i + 1]);
 
 		URL url = new URL(uri);
-		HttpURLConnection conn =
-			(HttpURLConnection)url.openConnection();
-		if (conn instanceof HttpsURLConnection) {
-			HttpsURLConnection secure = (HttpsURLConnection)conn;
-			secure.setHostnameVerifier(new HostnameVerifier() {
-				public boolean verify(String hostname,
-						SSLSession session) {
-					return true;
-				}
-			});
+		boolean idempotent = postVars == null && fileVars == null;
+		for (int attempt = 1; ; attempt++) {
+			rateController.acquire();
+			long start = System.currentTimeMillis();
+			HttpURLConnection conn;
+			try {
+				conn = transport.openConnection(url);
+			} catch (IOException e) {
+				rateController.failed();
+				throw e;
+			}
+			try {
+				sendRequest(conn, postVars, fileVars, getSessionKey);
+				// uploads take long because they are large, not because the wiki is busy
+				return new ResponseStream(conn,
+						fileVars == null ? start : -1);
+			} catch (ThrottledException e) {
+				transport.release(conn);
+				rateController.failed();
+				if (e.retryAfterMillis > 0)
+					rateController.pause(e.retryAfterMillis);
+				/*
+				 * After a 429 or maxlag, the wiki did not process the
+				 * request, so it is safe to repeat. A 503 may come from
+				 * a proxy after the wiki applied an edit or upload.
+				 */
+				if (attempt >= maxAttempts ||
+						(!idempotent && e.code == 503))
+					throw e;
+				backOff(attempt, e.retryAfterMillis);
+			} catch (IOException e) {
+				transport.release(conn);
+				if (isLoadSignal(e))
+					rateController.failed();
+				else
+					rateController.released();
+				if (!idempotent || attempt >= maxAttempts ||
+						e instanceof InterruptedIOException &&
+						!(e instanceof SocketTimeoutException) ||
+						e instanceof HTTPException &&
+						((HTTPException)e).code < 500)
+					throw e;
+				backOff(attempt, 0);
+			} catch (RuntimeException e) {
+				transport.release(conn);
+				rateController.released();
+				throw e;
+			}
 		}
+	}
 
+	/*
+	 * Returns whether a failed request hints at an overloaded wiki: server
+	 * errors, timeouts and broken connections do, but answers such as 404
+	 * (or the user interrupting us) do not.
+	 */
+	protected static boolean isLoadSignal(IOException e) {
+		if (e instanceof HTTPException)
+			return ((HTTPException)e).code >= 500;
+		return !(e instanceof InterruptedIOException) ||
+			e instanceof SocketTimeoutException;
+	}
+
+	protected void backOff(int attempt, long retryAfterMillis)
+			throws InterruptedIOException {
+		long millis = rateController.getBackoff(attempt - 1,
+				retryAfterMillis);
+		if (IJ.debugMode)
+			System.err.println("Retrying in " + millis + "ms");
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while "
+					+ "waiting to retry");
+		}
+	}
+
+	/* Parses a Retry-After header, in seconds or as an HTTP date */
+	protected static long getRetryAfterMillis(HttpURLConnection conn) {
+		String value = conn.getHeaderField("Retry-After");
+		if (value == null)
+			return 0;
+		value = value.trim();
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000);
+		} catch (NumberFormatException e) {
+			long date = conn.getHeaderFieldDate("Retry-After", 0);
+			return Math.max(0, date - System.currentTimeMillis());
+		}
+	}
+
+	void sendRequest(HttpURLConnection conn, String[] postVars,
+			Object[] fileVars,
+			boolean getSessionKey) throws IOException {
 		conn.setDoInput(true);
 		conn.setUseCaches(false);
+		conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
 
 		if (!getSessionKey) {
 			String cookie = "";
@@ -313,94 +1389,389 @@ public class MediaWikiClient {
 		}
 
 		if (fileVars != null) {
+			List<Object> parts = getMultipartBody(postVars, fileVars);
+			long length = 0;
+			for (Object part : parts)
+				if (part instanceof StreamingContents) {
+					long partLength = ((StreamingContents)part)
+						.getLength();
+					// uploadFileContents() spools them to a file
+					if (partLength < 0)
+						throw new IllegalArgumentException("Request "
+							+ "part of unknown length");
+					length += partLength;
+				}
+				else
+					length += part instanceof File ?
+						((File)part).length() :
+						part instanceof FileSlice ?
+						((FileSlice)part).length :
+						((byte[])part).length;
+
 			conn.setRequestProperty("Content-Type",
 					"multipart/form-data; boundary="
 					+ boundary);
 			conn.setDoOutput(true);
 			conn.setRequestMethod("POST");
+			// some servers hand PHP an empty body when it is chunked
+			conn.setFixedLengthStreamingMode(length);
 			conn.connect();
 
-			PrintStream ps =
-				new PrintStream(conn.getOutputStream());
-			for (int i = 0; fileVars != null &&
-					i + 2 < fileVars.length;
-					i += 3) {
-				ps.print("--" + boundary + "\r\n");
-				postFile(ps, (String)fileVars[i],
-						(String)fileVars[i + 1],
-						(byte[])fileVars[i + 2]);
-			}
-			for (int i = 0; postVars != null &&
-					i + 1 < postVars.length; i += 2)
-				ps.print("--" + boundary + "\r\n"
-						+ "Content-Disposition: "
-						+ "form-data; name=\""
-						+ postVars[i] + "\"\r\n\r\n"
-						+ postVars[i + 1] + "\r\n");
-			ps.println("--" + boundary + "--");
-			ps.close();
+			OutputStream out = conn.getOutputStream();
+			for (Object part : parts)
+				if (part instanceof File)
+					copyFile((File)part, out);
+				else if (part instanceof FileSlice)
+					((FileSlice)part).copyTo(out);
+				else if (part instanceof StreamingContents)
+					((StreamingContents)part).writeTo(out);
+				else
+					out.write((byte[])part);
+			out.close();
 		}
 		else if (postVars != null) {
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i + 1 < postVars.length; i += 2)
+				if (postVars[i + 1] != null)
+					builder.append(i == 0 ? "" : "&")
+						.append(urlEncode(postVars[i]))
+						.append('=')
+						.append(urlEncode(postVars[i + 1]));
+			byte[] body = builder.toString().getBytes(UTF8);
+
 			conn.setDoOutput(true);
 			conn.setRequestMethod("POST");
 			conn.setInstanceFollowRedirects(false);
+			conn.setFixedLengthStreamingMode(body.length);
 			conn.connect();
 
-			PrintStream ps =
-				new PrintStream(conn.getOutputStream());
-			for (int i = 0; postVars != null &&
-					i + 1 < postVars.length; i += 2)
-				if (postVars[i + 1] != null)
-					ps.print((i == 0 ? "" : "&")
-						+ urlEncode(postVars[i]) + "="
-						+ urlEncode(postVars[i + 1]));
-			ps.close();
+			OutputStream out = conn.getOutputStream();
+			out.write(body);
+			out.close();
 		}
 
 		int httpCode = conn.getResponseCode();
+		if (httpCode == 429 || httpCode == 503)
+			throw new ThrottledException(httpCode,
+					getRetryAfterMillis(conn));
 		if (httpCode != 200 && httpCode != 302)
-			throw new IOException("HTTP code: " + httpCode);
-
-		InputStream in = conn.getInputStream();
-		response = "";
-		byte[] buffer = new byte[1<<16];
-		for (;;) {
-			int len = in.read(buffer);
-			if (len < 0)
-				break;
-			response += new String(buffer, 0, len);
+			throw new HTTPException(httpCode);
+		if ("maxlag".equals(conn.getHeaderField("MediaWiki-API-Error"))) {
+			// the body only repeats the lag; drop it so the socket can be reused
+			InputStream in = conn.getInputStream();
+			byte[] buffer = new byte[4096];
+			while (in.read(buffer) >= 0)
+				; /* discard */
+			in.close();
+			long retryAfter = getRetryAfterMillis(conn);
+			throw new ThrottledException(httpCode,
+					retryAfter > 0 ? retryAfter : 5000);
 		}
-		in.close();
 
 		getCookies(conn.getHeaderFields().get("Set-Cookie"));
-		if (getSessionKey) {
+	}
 
-			domain = null;
-			int off = response.indexOf("<select name=\"wpDomain\"");
-			if (off > 0) {
-				int i1 = response.indexOf("<option>", off) + 8;
-				int i2 = response.indexOf("</option>", i1);
-				if (i1 > 8 && i2 > 0)
-					domain = response.substring(i1, i2);
+	protected class ResponseStream extends FilterInputStream {
+		protected final HttpURLConnection connection;
+		protected final Charset charset;
+		protected final int contentLength;
+		protected final CountingInputStream raw;
+		protected long decodedBytes;
+		protected boolean closed;
+
+		protected final long latency;
+
+		/* start is the time the request was sent, or -1 if it does not count */
+		protected ResponseStream(HttpURLConnection connection, long start)
+				throws IOException {
+			this(connection, new CountingInputStream(
+						connection.getInputStream()), start);
+		}
+
+		private ResponseStream(HttpURLConnection connection,
+				CountingInputStream raw, long start)
+				throws IOException {
+			super(decode(raw, connection.getContentEncoding(),
+						connection.getContentLength()));
+			latency = start < 0 ? -1 :
+				System.currentTimeMillis() - start;
+			this.connection = connection;
+			this.raw = raw;
+			charset = getCharset(connection.getContentType());
+			contentLength = connection.getContentLength();
+		}
+
+		public int read() throws IOException {
+			int result = super.read();
+			if (result >= 0)
+				decodedBytes++;
+			return result;
+		}
+
+		public int read(byte[] buffer, int offset, int length)
+				throws IOException {
+			int result = super.read(buffer, offset, length);
+			if (result > 0)
+				decodedBytes += result;
+			return result;
+		}
+
+		public long skip(long n) throws IOException {
+			long result = super.skip(n);
+			decodedBytes += result;
+			return result;
+		}
+
+		/* The number of bytes received so far */
+		public long getTransferredBytes() {
+			return raw.count;
+		}
+
+		/* The number of bytes after decompression read so far */
+		public long getDecodedBytes() {
+			return decodedBytes;
+		}
+
+		public synchronized void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			transferredTotal.addAndGet(raw.count);
+			decodedTotal.addAndGet(decodedBytes);
+			if (IJ.debugMode)
+				System.err.println(connection.getURL() + ": "
+					+ raw.count + " bytes transferred, "
+					+ decodedBytes + " bytes decoded");
+			try {
+				super.close();
+			} finally {
+				transport.release(connection);
+				rateController.succeeded(latency);
 			}
 		}
+	}
+
+	protected final AtomicLong transferredTotal = new AtomicLong();
+	protected final AtomicLong decodedTotal = new AtomicLong();
+
+	/* The number of response bytes received over the wire */
+	public long getTransferredBytes() {
+		return transferredTotal.get();
+	}
+
+	/* The number of response bytes after decompression */
+	public long getDecodedBytes() {
+		return decodedTotal.get();
+	}
+
+	protected static InputStream decode(InputStream in,
+			String contentEncoding, int contentLength)
+			throws IOException {
+		if (contentEncoding == null || contentLength == 0)
+			return in;
+		contentEncoding = contentEncoding.trim().toLowerCase();
+		if (contentEncoding.equals("gzip") ||
+				contentEncoding.equals("x-gzip"))
+			return new GZIPInputStream(in, 1 << 13);
+		if (contentEncoding.equals("deflate")) {
+			// some servers send raw deflate instead of zlib format
+			PushbackInputStream pushback =
+				new PushbackInputStream(in, 2);
+			int b0 = pushback.read();
+			int b1 = b0 < 0 ? -1 : pushback.read();
+			if (b1 >= 0)
+				pushback.unread(b1);
+			if (b0 >= 0)
+				pushback.unread(b0);
+			boolean zlib = b1 >= 0 && (b0 & 0x0f) == 8 &&
+				((b0 << 8) | b1) % 31 == 0;
+			return new InflaterInputStream(pushback,
+					new Inflater(!zlib), 1 << 13) {
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inf.end();
+					}
+				}
+			};
+		}
+		return in;
+	}
+
+	protected static class CountingInputStream extends FilterInputStream {
+		protected long count;
+
+		protected CountingInputStream(InputStream in) {
+			super(in);
+		}
 
-		return response;
+		public int read() throws IOException {
+			int result = super.read();
+			if (result >= 0)
+				count++;
+			return result;
+		}
+
+		public int read(byte[] buffer, int offset, int length)
+				throws IOException {
+			int result = super.read(buffer, offset, length);
+			if (result > 0)
+				count += result;
+			return result;
+		}
+
+		public long skip(long n) throws IOException {
+			long result = super.skip(n);
+			count += result;
+			return result;
+		}
+	}
+
+	protected static Charset getCharset(String contentType) {
+		if (contentType != null) {
+			int off = contentType.toLowerCase().indexOf("charset=");
+			if (off >= 0) {
+				String name = contentType.substring(off + 8);
+				int semicolon = name.indexOf(';');
+				if (semicolon >= 0)
+					name = name.substring(0, semicolon);
+				name = name.trim();
+				if (name.startsWith("\"") && name.endsWith("\"")
+						&& name.length() > 1)
+					name = name.substring(1, name.length() - 1);
+				try {
+					return Charset.forName(name);
+				} catch (IllegalArgumentException e) {
+					/* fall through */
+				}
+			}
+		}
+		// MediaWiki always serves UTF-8
+		return UTF8;
 	}
 
-	void postFile(PrintStream ps, String variableName, String fileName, byte[] contents) {
-		String contentType = URLConnection.guessContentTypeFromName(fileName);
-		if (contentType == null)
-			contentType = "application/octet-stream";
+	protected final static Charset UTF8 = Charset.forName("UTF-8");
 
-		ps.print("Content-Disposition: form-data; "
+	protected static String readFully(Reader reader, int lengthHint)
+			throws IOException {
+		// the byte count is a good guess for the character count
+		StringBuilder builder = new StringBuilder(lengthHint > 0 ?
+				lengthHint : 1 << 16);
+		char[] buffer = new char[1 << 13];
+		for (;;) {
+			int len = reader.read(buffer);
+			if (len < 0)
+				break;
+			builder.append(buffer, 0, len);
+		}
+		return builder.toString();
+	}
+
+	/*
+	 * Returns the multipart body as a list of byte[] and File parts, so
+	 * that its length is known before sending, and the files can be
+	 * streamed instead of being held in memory.
+	 */
+	List<Object> getMultipartBody(String[] postVars, Object[] fileVars) {
+		List<Object> parts = new ArrayList<Object>();
+		byte[] newline = "\r\n".getBytes(UTF8);
+		for (int i = 0; i + 2 < fileVars.length; i += 3) {
+			String variableName = (String)fileVars[i];
+			String fileName = (String)fileVars[i + 1];
+			String contentType = URLConnection
+				.guessContentTypeFromName(fileName);
+			if (contentType == null)
+				contentType = "application/octet-stream";
+			parts.add(("--" + boundary + "\r\n"
+				+ "Content-Disposition: form-data; "
 				+ "name=\"" + variableName + "\"; "
 				+ "filename=\"" + fileName
 				+ "\"\r\n"
 				+ "Content-Type: " + contentType
-				+ "\r\n\r\n");
-		ps.write(contents, 0, contents.length);
-		ps.print("\r\n");
+				+ "\r\n\r\n").getBytes(UTF8));
+			parts.add(fileVars[i + 2]);
+			parts.add(newline);
+		}
+		for (int i = 0; postVars != null &&
+				i + 1 < postVars.length; i += 2)
+			if (postVars[i + 1] != null)
+				parts.add(("--" + boundary + "\r\n"
+					+ "Content-Disposition: "
+					+ "form-data; name=\""
+					+ postVars[i] + "\"\r\n\r\n"
+					+ postVars[i + 1] + "\r\n")
+					.getBytes(UTF8));
+		parts.add(("--" + boundary + "--\r\n").getBytes(UTF8));
+		return parts;
+	}
+
+	protected static void copyFile(File file, OutputStream out)
+			throws IOException {
+		long expected = file.length();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			long total = 0;
+			for (;;) {
+				int len = in.read(buffer);
+				if (len < 0)
+					break;
+				out.write(buffer, 0, len);
+				total += len;
+			}
+			if (total != expected)
+				throw new IOException(file + " changed while "
+					+ "uploading");
+		} finally {
+			in.close();
+		}
+	}
+
+	/* A part of a file, to be uploaded in place of a File or byte[] */
+	public static class FileSlice {
+		public final File file;
+		public final long offset, length;
+
+		public FileSlice(File file, long offset, long length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		protected void copyTo(OutputStream out) throws IOException {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				in.getChannel().position(offset);
+				byte[] buffer = new byte[1 << 16];
+				long remaining = length;
+				while (remaining > 0) {
+					int len = in.read(buffer, 0, (int)Math.min(
+							buffer.length, remaining));
+					if (len < 0)
+						throw new IOException(file + " changed "
+							+ "while uploading");
+					out.write(buffer, 0, len);
+					remaining -= len;
+				}
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/*
+	 * Contents that are produced while they are sent, e.g. by an image
+	 * encoder. They may be asked to write themselves more than once.
+	 */
+	public interface StreamingContents {
+		/*
+		 * Returns the number of bytes, or -1 if unknown in advance;
+		 * such contents are written to a temporary file first.
+		 */
+		long getLength();
+
+		void writeTo(OutputStream out) throws IOException;
 	}
 
 	String sessionKey = "wikidb_session";
@@ -436,7 +1807,7 @@ public class MediaWikiClient {
 			File tmp = File.createTempFile("preview", ".html");
 			tmp.deleteOnExit();
 			FileOutputStream out = new FileOutputStream(tmp);
-			out.write(html.getBytes());
+			out.write(html.getBytes(UTF8));
 			out.close();
 			new BrowserLauncher().run(tmp.getAbsolutePath());
 		} catch (Exception e) {
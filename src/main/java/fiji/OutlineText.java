@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * Fiji Developer plugin for Fiji.
+ * %%
+ * Copyright (C) 2009 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * White text with a dark outline and a soft drop shadow, as used for the
+ * labels of prettified screenshots.
+ *
+ * The text is rasterized only once; outline and shadow are derived from
+ * that coverage mask by shifting it around. The result is the same as
+ * drawing the text 18 times with translucent colors, but it takes one
+ * pass over the label's pixels. Recently used labels are cached.
+ */
+public class OutlineText {
+	protected final static int[][] offsets = {
+		{-1, 0}, {-1, -1}, {0, -1}, {1, -1}, {1, 0}, {1, 1}, {0, 1}, {-1, 1}
+	};
+	protected final static int SHADOW_OFFSET = 3, SHADOW_GRAY = 64;
+	protected final static int PADDING = SHADOW_OFFSET + 2;
+
+	/* the label's box, relative to the point the text is drawn at */
+	protected final int left, top, width, height;
+
+	/*
+	 * How much of the underlying pixel shows through the shadow, the
+	 * outline and the text itself, respectively (0 to 1)
+	 */
+	protected final float[] shadow, outline, fill;
+
+	protected OutlineText(String text, Font font) {
+		BufferedImage image = new BufferedImage(1, 1,
+				BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = image.createGraphics();
+		FontMetrics metrics = g.getFontMetrics(font);
+		g.dispose();
+
+		// like ImageProcessor.drawString(), y is the bottom of the text
+		int ascent = metrics.getAscent(), descent = metrics.getDescent();
+		width = metrics.stringWidth(text) + 2 * PADDING;
+		height = ascent + descent + 2 * PADDING;
+		left = -PADDING;
+		top = -descent - ascent - PADDING;
+
+		image = new BufferedImage(width, height,
+				BufferedImage.TYPE_BYTE_GRAY);
+		g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+				RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+				RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setFont(font);
+		g.drawString(text, PADDING, PADDING + ascent);
+		g.dispose();
+		byte[] coverage = ((DataBufferByte)image.getRaster()
+				.getDataBuffer()).getData();
+
+		shadow = new float[width * height];
+		outline = new float[width * height];
+		fill = new float[width * height];
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				float s = 1 - 64 / 255f * get(coverage,
+						x - SHADOW_OFFSET, y - SHADOW_OFFSET);
+				float o = 1;
+				for (int[] dxy : offsets) {
+					s *= 1 - 32 / 255f * get(coverage,
+						x - SHADOW_OFFSET - dxy[0],
+						y - SHADOW_OFFSET - dxy[1]);
+					o *= 1 - 80 / 255f * get(coverage,
+						x - dxy[0], y - dxy[1]);
+				}
+				int i = x + y * width;
+				shadow[i] = s;
+				outline[i] = o;
+				fill[i] = 1 - get(coverage, x, y);
+			}
+	}
+
+	protected float get(byte[] coverage, int x, int y) {
+		if (x < 0 || y < 0 || x >= width || y >= height)
+			return 0;
+		return (coverage[x + y * width] & 0xff) / 255f;
+	}
+
+	/* Draws the label with its lower left corner at (x, y) */
+	public void draw(int[] pixels, int imageWidth, int imageHeight,
+			int x, int y) {
+		int x0 = Math.max(0, x + left), x1 = Math.min(imageWidth,
+				x + left + width);
+		int y0 = Math.max(0, y + top), y1 = Math.min(imageHeight,
+				y + top + height);
+		for (int v = y0; v < y1; v++) {
+			int i = v * imageWidth + x0;
+			int j = (v - y - top) * width + x0 - x - left;
+			for (int u = x0; u < x1; u++, i++, j++) {
+				if (shadow[j] == 1 && outline[j] == 1 && fill[j] == 1)
+					continue;
+				int value = pixels[i];
+				pixels[i] = (value & 0xff000000)
+					| (blend((value >> 16) & 0xff, j) << 16)
+					| (blend((value >> 8) & 0xff, j) << 8)
+					| blend(value & 0xff, j);
+			}
+		}
+	}
+
+	protected int blend(int value, int j) {
+		float result = SHADOW_GRAY + (value - SHADOW_GRAY) * shadow[j];
+		result *= outline[j];
+		result = 255 + (result - 255) * fill[j];
+		return (int)(result + 0.5f);
+	}
+
+	protected final static Map<String, OutlineText> cache =
+		new LinkedHashMap<String, OutlineText>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<String, OutlineText> eldest) {
+				return size() > 64;
+			}
+		};
+
+	/* Returns the (possibly cached) label for the given text and font */
+	public static OutlineText get(String text, Font font) {
+		String key = font.getName() + "/" + font.getStyle() + "/"
+			+ font.getSize() + "/" + text;
+		synchronized (cache) {
+			OutlineText result = cache.get(key);
+			if (result != null)
+				return result;
+		}
+		OutlineText result = new OutlineText(text, font);
+		synchronized (cache) {
+			cache.put(key, result);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,526 @@
+/*-
+ * #%L
+ * Fiji Developer plugin for Fiji.
+ * %%
+ * Copyright (C) 2009 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder that compresses blocks of rows in parallel.
+ *
+ * Like pigz, every block is deflated on its own and ends on a byte boundary,
+ * so that the blocks can simply be concatenated. Every row gets the filter
+ * that leaves the smallest sum of absolute differences, as the PNG
+ * specification recommends. Since user interfaces often compress better
+ * without any filter (long runs and repeated glyphs stay intact), a quick
+ * trial decides per block whether the filtered or the raw rows are used.
+ *
+ * Only 8-bit images are handled: grayscale, indexed, RGB and RGBA.
+ */
+public class PNGEncoder {
+	public final static String LEVEL_KEY = "fiji.png.compression.level";
+
+	protected final static int GRAY = 0, RGB = 2, INDEXED = 3, RGBA = 6;
+	protected final static int BLOCK_SIZE = 1 << 19;
+
+	protected final int level;
+
+	public PNGEncoder(int level) {
+		this.level = level;
+	}
+
+	/* Uses the compression level from the preferences (default: 6) */
+	public PNGEncoder() {
+		this((int)Prefs.get(LEVEL_KEY, 6));
+	}
+
+	protected static ExecutorService pool;
+
+	protected synchronized static ExecutorService getPool() {
+		if (pool == null)
+			pool = Executors.newFixedThreadPool(Math.max(1,
+				Prefs.getThreads()), MediaWikiClient.daemonThreads("png"));
+		return pool;
+	}
+
+	/* Fills in the raw (unfiltered) samples of one row */
+	protected interface Rows {
+		void get(int y, byte[] row);
+	}
+
+	public static boolean canEncode(ImagePlus imp) {
+		switch (imp.getType()) {
+		case ImagePlus.GRAY8:
+		case ImagePlus.COLOR_256:
+		case ImagePlus.COLOR_RGB:
+			break;
+		default:
+			return false;
+		}
+		// leave flattening and multi-channel images to ImageJ
+		return !imp.isComposite() && (imp.getOverlay() == null ||
+				imp.getHideOverlay());
+	}
+
+	public void write(ImagePlus imp, OutputStream out) throws IOException {
+		write(imp.getProcessor(), out);
+	}
+
+	public void write(ImageProcessor ip, OutputStream out)
+			throws IOException {
+		final int width = ip.getWidth();
+		Object pixels = ip.getPixels();
+		if (pixels instanceof int[]) {
+			final int[] rgb = (int[])pixels;
+			write(width, ip.getHeight(), RGB, null, new Rows() {
+				@Override
+				public void get(int y, byte[] row) {
+					unpackRGB(rgb, y * width, width, row);
+				}
+			}, out);
+			return;
+		}
+		if (!(pixels instanceof byte[]))
+			throw new IOException("Unsupported image type");
+		final byte[] bytes = (byte[])pixels;
+		Rows rows = new Rows() {
+			@Override
+			public void get(int y, byte[] row) {
+				System.arraycopy(bytes, y * width, row, 0, width);
+			}
+		};
+		if (ip.isDefaultLut())
+			write(width, ip.getHeight(), GRAY, null, rows, out);
+		else
+			write(width, ip.getHeight(), INDEXED,
+				getPalette((IndexColorModel)ip.getColorModel()),
+				rows, out);
+	}
+
+	public static boolean canEncode(BufferedImage image) {
+		int type = image.getRaster().getDataBuffer().getDataType();
+		if (type == DataBuffer.TYPE_INT)
+			return true;
+		return type == DataBuffer.TYPE_BYTE &&
+			image.getColorModel().getPixelSize() == 8 &&
+			image.getRaster().getNumBands() == 1;
+	}
+
+	public void write(final BufferedImage image, OutputStream out)
+			throws IOException {
+		final int width = image.getWidth();
+		int height = image.getHeight();
+		ColorModel colorModel = image.getColorModel();
+		final Raster raster = image.getRaster();
+		if (raster.getDataBuffer().getDataType() == DataBuffer.TYPE_BYTE &&
+				raster.getNumBands() == 1) {
+			Rows rows = new Rows() {
+				@Override
+				public void get(int y, byte[] row) {
+					raster.getDataElements(0, y, width, 1, row);
+				}
+			};
+			if (colorModel instanceof IndexColorModel)
+				write(width, height, INDEXED, getPalette(
+					(IndexColorModel)colorModel), rows, out);
+			else
+				write(width, height, GRAY, null, rows, out);
+			return;
+		}
+		if (colorModel.hasAlpha()) {
+			write(width, height, RGBA, null, new Rows() {
+				@Override
+				public void get(int y, byte[] row) {
+					int[] argb = image.getRGB(0, y, width, 1,
+						null, 0, width);
+					for (int i = 0, j = 0; i < width; i++) {
+						int v = argb[i];
+						row[j++] = (byte)(v >> 16);
+						row[j++] = (byte)(v >> 8);
+						row[j++] = (byte)v;
+						row[j++] = (byte)(v >> 24);
+					}
+				}
+			}, out);
+			return;
+		}
+		write(width, height, RGB, null, new Rows() {
+			@Override
+			public void get(int y, byte[] row) {
+				unpackRGB(image.getRGB(0, y, width, 1, null, 0, width),
+					0, width, row);
+			}
+		}, out);
+	}
+
+	protected static void unpackRGB(int[] pixels, int offset, int width,
+			byte[] row) {
+		for (int i = 0, j = 0; i < width; i++) {
+			int v = pixels[offset + i];
+			row[j++] = (byte)(v >> 16);
+			row[j++] = (byte)(v >> 8);
+			row[j++] = (byte)v;
+		}
+	}
+
+	protected static byte[] getPalette(IndexColorModel colorModel) {
+		int size = colorModel.getMapSize();
+		byte[] palette = new byte[3 * size];
+		for (int i = 0; i < size; i++) {
+			palette[3 * i] = (byte)colorModel.getRed(i);
+			palette[3 * i + 1] = (byte)colorModel.getGreen(i);
+			palette[3 * i + 2] = (byte)colorModel.getBlue(i);
+		}
+		return palette;
+	}
+
+	protected void write(int width, int height, int colorType,
+			byte[] palette, Rows rows, OutputStream out)
+			throws IOException {
+		int channels = colorType == RGB ? 3 : colorType == RGBA ? 4 : 1;
+		int stride = width * channels + 1;
+		int rowsPerBlock = Math.max(1, BLOCK_SIZE / stride);
+		int blockCount = (height + rowsPerBlock - 1) / rowsPerBlock;
+
+		out.write(new byte[] {
+			(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+		});
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8;
+		header[9] = (byte)colorType;
+		writeChunk(out, "IHDR", null, header, header.length, null);
+		if (palette != null)
+			writeChunk(out, "PLTE", null, palette, palette.length,
+					null);
+
+		byte[] zlibHeader = {
+			0x78, (byte)(level < 2 && level >= 0 ? 0x01 :
+				level < 6 && level >= 0 ? 0x5e :
+				level > 6 ? 0xda : 0x9c)
+		};
+		byte[] trailer = new byte[4];
+		long adler = 1;
+		ArrayDeque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+		ExecutorService pool = blockCount > 1 ? getPool() : null;
+		// bounds the memory: a few blocks more than there are threads
+		int window = Math.max(1, Prefs.getThreads()) + 2;
+		int next = 0;
+		try {
+			for (int i = 0; i < blockCount; i++) {
+				Block block;
+				if (pool == null)
+					block = new Block(rows, width, channels,
+						colorType == INDEXED, height,
+						0, height, true).call();
+				else {
+					while (next < blockCount &&
+							pending.size() < window) {
+						int y0 = next * rowsPerBlock;
+						next++;
+						pending.add(pool.submit(new Block(rows,
+							width, channels,
+							colorType == INDEXED, height, y0,
+							Math.min(height, y0 + rowsPerBlock),
+							next == blockCount)));
+					}
+					block = pending.poll().get();
+				}
+				adler = combineAdler32(adler, block.adler,
+						block.rawLength);
+				boolean last = i + 1 == blockCount;
+				if (last)
+					putInt(trailer, 0, (int)adler);
+				writeChunk(out, "IDAT", i == 0 ? zlibHeader : null,
+						block.data, block.length,
+						last ? trailer : null);
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while "
+					+ "encoding a PNG");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(cause);
+		} finally {
+			for (Future<Block> future : pending)
+				future.cancel(true);
+		}
+		writeChunk(out, "IEND", null, null, 0, null);
+		out.flush();
+	}
+
+	/* Filters and deflates one block of rows */
+	protected class Block implements Callable<Block> {
+		protected final Rows rows;
+		protected final int width, channels, height, y0, y1;
+		protected final boolean indexed, last;
+
+		protected byte[] data;
+		protected int length;
+		protected long adler, rawLength;
+
+		protected Block(Rows rows, int width, int channels,
+				boolean indexed, int height, int y0, int y1,
+				boolean last) {
+			this.rows = rows;
+			this.width = width;
+			this.channels = channels;
+			this.indexed = indexed;
+			this.height = height;
+			this.y0 = y0;
+			this.y1 = y1;
+			this.last = last;
+		}
+
+		@Override
+		public Block call() {
+			int stride = width * channels + 1;
+			byte[] filtered = new byte[(y1 - y0) * stride];
+			byte[] unfiltered = indexed ? null : new byte[filtered.length];
+			byte[] previous = new byte[stride - 1];
+			byte[] current = new byte[stride - 1];
+			if (y0 > 0)
+				rows.get(y0 - 1, previous);
+			for (int y = y0; y < y1; y++) {
+				int offset = (y - y0) * stride;
+				rows.get(y, current);
+				filterRow(current, previous, channels, indexed,
+						filtered, offset);
+				if (unfiltered != null)
+					System.arraycopy(current, 0, unfiltered,
+							offset + 1, stride - 1);
+				byte[] swap = previous;
+				previous = current;
+				current = swap;
+			}
+
+			byte[] raw = filtered;
+			if (unfiltered != null) {
+				// screenshots often compress better unfiltered; a
+				// quick trial tells which to compress properly
+				deflate(filtered, Deflater.BEST_SPEED,
+						Deflater.FILTERED);
+				int filteredLength = length;
+				deflate(unfiltered, Deflater.BEST_SPEED,
+						Deflater.DEFAULT_STRATEGY);
+				if (length < filteredLength)
+					raw = unfiltered;
+			}
+			deflate(raw, level, raw == filtered ?
+					Deflater.FILTERED : Deflater.DEFAULT_STRATEGY);
+			rawLength = raw.length;
+			Adler32 checksum = new Adler32();
+			checksum.update(raw, 0, raw.length);
+			adler = checksum.getValue();
+			return this;
+		}
+
+		/*
+		 * Compresses the rows into a raw deflate stream which ends on a
+		 * byte boundary, or with the final block if this is the last
+		 */
+		protected void deflate(byte[] raw, int level, int strategy) {
+			Deflater deflater = new Deflater(level, true);
+			try {
+				deflater.setStrategy(strategy);
+				deflater.setInput(raw, 0, raw.length);
+				if (last)
+					deflater.finish();
+				data = new byte[raw.length / 4 + 64];
+				length = 0;
+				for (;;) {
+					length += deflater.deflate(data, length,
+						data.length - length, last ?
+						Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+					// (the first call may only apply the strategy)
+					if (last ? deflater.finished() :
+							length < data.length &&
+							deflater.needsInput())
+						break;
+					byte[] grown = new byte[data.length * 2];
+					System.arraycopy(data, 0, grown, 0, length);
+					data = grown;
+				}
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	/*
+	 * Writes the filter type and the filtered row, picking the filter
+	 * with the smallest sum of absolute (signed) differences. Indexed rows
+	 * are not filtered: their values are no intensities.
+	 */
+	protected static void filterRow(byte[] row, byte[] previous,
+			int bpp, boolean indexed, byte[] out, int offset) {
+		int length = row.length;
+		int best = 0;
+		if (!indexed) {
+			int none = 0, sub = 0, up = 0, average = 0, paeth = 0;
+			for (int i = 0; i < length; i++) {
+				int x = row[i] & 0xff, b = previous[i] & 0xff;
+				int a = 0, c = 0;
+				if (i >= bpp) {
+					a = row[i - bpp] & 0xff;
+					c = previous[i - bpp] & 0xff;
+				}
+				none += cost(x);
+				sub += cost(x - a);
+				up += cost(x - b);
+				average += cost(x - ((a + b) >> 1));
+				paeth += cost(x - paeth(a, b, c));
+			}
+			int min = none;
+			if (sub < min) { min = sub; best = 1; }
+			if (up < min) { min = up; best = 2; }
+			if (average < min) { min = average; best = 3; }
+			if (paeth < min) { min = paeth; best = 4; }
+		}
+		out[offset++] = (byte)best;
+		switch (best) {
+		case 0:
+			System.arraycopy(row, 0, out, offset, length);
+			break;
+		case 1:
+			System.arraycopy(row, 0, out, offset, bpp);
+			for (int i = bpp; i < length; i++)
+				out[offset + i] = (byte)(row[i] - row[i - bpp]);
+			break;
+		case 2:
+			for (int i = 0; i < length; i++)
+				out[offset + i] = (byte)(row[i] - previous[i]);
+			break;
+		case 3:
+			for (int i = 0; i < length; i++) {
+				int a = i < bpp ? 0 : row[i - bpp] & 0xff;
+				int b = previous[i] & 0xff;
+				out[offset + i] = (byte)(row[i] - ((a + b) >> 1));
+			}
+			break;
+		case 4:
+			for (int i = 0; i < length; i++) {
+				int a = 0, c = 0;
+				if (i >= bpp) {
+					a = row[i - bpp] & 0xff;
+					c = previous[i - bpp] & 0xff;
+				}
+				out[offset + i] = (byte)(row[i]
+					- paeth(a, previous[i] & 0xff, c));
+			}
+			break;
+		}
+	}
+
+	/* The magnitude of a filtered byte, taken as signed */
+	protected static int cost(int difference) {
+		difference &= 0xff;
+		return difference < 128 ? difference : 256 - difference;
+	}
+
+	protected static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a), pb = Math.abs(p - b),
+		    pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc)
+			return a;
+		return pb <= pc ? b : c;
+	}
+
+	/* The Adler-32 of two concatenated byte sequences (from zlib) */
+	protected static long combineAdler32(long adler1, long adler2,
+			long length2) {
+		final long base = 65521;
+		long remainder = length2 % base;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = (remainder * sum1) % base;
+		sum1 += (adler2 & 0xffff) + base - 1;
+		sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff)
+			+ base - remainder;
+		if (sum1 >= base)
+			sum1 -= base;
+		if (sum1 >= base)
+			sum1 -= base;
+		if (sum2 >= base << 1)
+			sum2 -= base << 1;
+		if (sum2 >= base)
+			sum2 -= base;
+		return sum1 | (sum2 << 16);
+	}
+
+	protected static void writeChunk(OutputStream out, String type,
+			byte[] prefix, byte[] data, int length, byte[] suffix)
+			throws IOException {
+		int total = length + (prefix == null ? 0 : prefix.length)
+			+ (suffix == null ? 0 : suffix.length);
+		byte[] buffer = new byte[4];
+		putInt(buffer, 0, total);
+		out.write(buffer);
+		CRC32 crc = new CRC32();
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		crc.update(typeBytes);
+		out.write(typeBytes);
+		if (prefix != null) {
+			crc.update(prefix);
+			out.write(prefix);
+		}
+		if (length > 0) {
+			crc.update(data, 0, length);
+			out.write(data, 0, length);
+		}
+		if (suffix != null) {
+			crc.update(suffix);
+			out.write(suffix);
+		}
+		putInt(buffer, 0, (int)crc.getValue());
+		out.write(buffer);
+	}
+
+	protected static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte)(value >> 24);
+		buffer[offset + 1] = (byte)(value >> 16);
+		buffer[offset + 2] = (byte)(value >> 8);
+		buffer[offset + 3] = (byte)value;
+	}
+}
@@ -21,13 +21,12 @@
  */
 package fiji;
 
-import fiji.drawing.Linear_Gradient;
-import fiji.selection.Select_Bounding_Box;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.Line;
+import ij.Prefs;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
 import ij.plugin.filter.PlugInFilter;
-import ij.process.Blitter;
 import ij.process.ColorProcessor;
 import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
@@ -37,113 +36,428 @@ import ij3d.ImageCanvas3D;
 
 import java.awt.Color;
 import java.awt.Font;
-import java.awt.Rectangle;
+import java.awt.GraphicsEnvironment;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class Prettify_Wiki_Screenshot implements PlugInFilter {
 	public String label = "";
 
+	/* the size of the canvas, before cropping */
+	public int width = 400, height = 400;
+
+	/*
+	 * render with Java3D (the renderer used before) instead of the much
+	 * faster software renderer; ignored when headless
+	 */
+	public boolean use3DViewer;
+
+	/* the angle by which the screenshot is turned around its vertical axis */
+	public final static double ANGLE = Math.PI / 12;
+
 	public int setup(String arg, ImagePlus imp) {
 		return DOES_ALL | NO_CHANGES;
 	}
 
 	public void run(ImageProcessor ip) {
+		GenericDialog gd = new GenericDialog("Prettify Wiki Screenshot");
+		gd.addNumericField("Width", width, 0);
+		gd.addNumericField("Height", height, 0);
+		if (!GraphicsEnvironment.isHeadless())
+			gd.addCheckbox("Render_with_3D_viewer", use3DViewer);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		width = (int)gd.getNextNumber();
+		height = (int)gd.getNextNumber();
+		if (!GraphicsEnvironment.isHeadless())
+			use3DViewer = gd.getNextBoolean();
+		if (width < 1 || height < 1) {
+			IJ.error("Invalid size: " + width + "x" + height);
+			return;
+		}
+
+		ImagePlus result = prettify(ip);
+		if (GraphicsEnvironment.isHeadless())
+			// let the calling macro or script pick it up
+			WindowManager.setTempCurrentImage(result);
+		else
+			result.show();
+	}
+
+	/* Returns the prettified screenshot, without showing it */
+	public ImagePlus prettify(ImageProcessor ip) {
 		if (!(ip instanceof ColorProcessor)) {
 			ImagePlus image = new ImagePlus("", ip);
 			new ImageConverter(image).convertToRGB();
 			ip = image.getProcessor();
 		}
-		int h = ip.getHeight();
+		ColorProcessor mask = makeReflection(ip);
 
-		// make a gradient image
-		ImageProcessor mask = ip.duplicate();
-		Line line = new Line(0, 0, 0, h);
-		int from = (int)(0.99 * 255);
-		int to = (int)(0.5 * 255);
-		from = from | (from << 8) | (from << 16);
-		to = to | (to << 8) | (to << 16);
-		Linear_Gradient.makeLinearGradient(mask, from, to, line);
+		int w2 = width;
+		int h2 = height;
+		ImagePlus smallImage;
+		if (use3DViewer && !GraphicsEnvironment.isHeadless())
+			smallImage = Viewer3D.render(ip, mask, w2, h2);
+		else
+			smallImage = new ImagePlus("Prettified screenshot",
+				render((ColorProcessor)ip, mask,
+					w2, h2));
 
-		// "blend" mask with original image
+		// write label
+		if (label != null && !label.equals(""))
+			drawOutlineText(smallImage.getProcessor(), label, 24, 30, smallImage.getHeight() - 30);
 
-		mask.copyBits(ip, 0, 0, Blitter.MAX);
-		mask.flipVertical();
+		// autocrop
+		smallImage.setProcessor(AutoCrop.crop(smallImage.getProcessor(), 0xffffff, 0));
+		return smallImage;
+	}
 
-		// instantiate the 3D viewer
+	/* Returns the mirror image, fading into white */
+	protected static ColorProcessor makeReflection(ImageProcessor ip) {
+		int w = ip.getWidth(), h = ip.getHeight();
+		int[] mirror = new int[w * h];
+		makeReflection((int[])ip.getPixels(), w, h, mirror);
+		return new ColorProcessor(w, h, mirror);
+	}
 
-		Image3DUniverse univ = new Image3DUniverse();
-		univ.show();
+	/*
+	 * Writes the upside-down screenshot, brightened to at least a gray
+	 * level that fades from 50% (next to the screenshot) to 99%, into
+	 * the mirror array.
+	 *
+	 * This is the same as filling a copy with a vertical gradient,
+	 * blending the screenshot into it with MAX and flipping it, but
+	 * touches every pixel only once.
+	 */
+	public static void makeReflection(final int[] pixels, final int w,
+			final int h, final int[] mirror) {
+		final int from = (int)(0.99 * 255), to = (int)(0.5 * 255);
+		forRows(h, new RowKernel() {
+			public void rows(int start, int end) {
+				for (int y = start; y < end; y++) {
+					int gray = from + (to - from) * y / h;
+					int i = y * w, j = (h - 1 - y) * w;
+					for (int x = 0; x < w; x++) {
+						int value = pixels[i + x];
+						int r = Math.max((value >> 16) & 0xff, gray);
+						int g = Math.max((value >> 8) & 0xff, gray);
+						int b = Math.max(value & 0xff, gray);
+						mirror[j + x] = 0xff000000 | (r << 16)
+							| (g << 8) | b;
+					}
+				}
+			}
+		});
+	}
 
-		// add the screenshot
+	/* Java3D is only loaded when this class is used */
+	protected static class Viewer3D {
+		public static ImagePlus render(ImageProcessor ip, ImageProcessor mask, int w2, int h2) {
+			int h = ip.getHeight();
 
-		Content cImage = univ.addOrthoslice(new ImagePlus("screenshot", ip),
-				null, "image", 0, new boolean[] {true, true, true}, 1);
-		int dy = (int)(-h / 8);
-		cImage.setTransform(new double[] {
-			1.0, 0.0, 0.0, 0.0,
-			0.0, 1.0, 0.0, dy,
-			0.0, 0.0, 1.0, 0.0,
-			0.0, 0.0, 0.0, 1.0});
+			// instantiate the 3D viewer
 
-		// add the mirror image
-		Content cMirror = univ.addOrthoslice(new ImagePlus("mirror", mask),
-				null, "mirror", 0, new boolean[] {true, true, true}, 1);
+			Image3DUniverse univ = new Image3DUniverse();
+			univ.show();
 
-		double cos = 0.0;
-		double sin = 1.0;
-		// flap forward
-		cMirror.applyTransform(new double[] {
-			1.0, 0.0, 0.0, 0.0,
-			0.0, cos, sin, 0.0,
-			0.0, -sin, cos, 0.0,
-			0.0, 0.0, 0.0, 1.0});
+			// add the screenshot
 
-		// move
-		cMirror.applyTransform(new double[] {
-			1.0, 0.0, 0.0, 0.0,
-			0.0, 1.0, 0.0, h,
-			0.0, 0.0, 1.0, dy,
-			0.0, 0.0, 0.0, 1.0});
+			Content cImage = univ.addOrthoslice(new ImagePlus("screenshot", ip),
+					null, "image", 0, new boolean[] {true, true, true}, 1);
+			int dy = (int)(-h / 8);
+			cImage.setTransform(new double[] {
+				1.0, 0.0, 0.0, 0.0,
+				0.0, 1.0, 0.0, dy,
+				0.0, 0.0, 1.0, 0.0,
+				0.0, 0.0, 0.0, 1.0});
 
-		// rotate nicely
+			// add the mirror image
+			Content cMirror = univ.addOrthoslice(new ImagePlus("mirror", mask),
+					null, "mirror", 0, new boolean[] {true, true, true}, 1);
 
-		sleep(1);
-		univ.rotateY(Math.PI / 12);
-		univ.fireTransformationUpdated();
-		sleep(1);
-		univ.adjustView();
-		univ.fireTransformationUpdated();
+			double cos = 0.0;
+			double sin = 1.0;
+			// flap forward
+			cMirror.applyTransform(new double[] {
+				1.0, 0.0, 0.0, 0.0,
+				0.0, cos, sin, 0.0,
+				0.0, -sin, cos, 0.0,
+				0.0, 0.0, 0.0, 1.0});
 
-		// set background
+			// move
+			cMirror.applyTransform(new double[] {
+				1.0, 0.0, 0.0, 0.0,
+				0.0, 1.0, 0.0, h,
+				0.0, 0.0, 1.0, dy,
+				0.0, 0.0, 0.0, 1.0});
 
-		float background = 1.0f;
-		ImageCanvas3D canvas = (ImageCanvas3D)univ.getCanvas();
-		canvas.getBG().setColor(background, background, background);
+			// rotate nicely
 
-		// take snapshot
+			sleep(1);
+			univ.rotateY(ANGLE);
+			univ.fireTransformationUpdated();
+			sleep(1);
+			univ.adjustView();
+			univ.fireTransformationUpdated();
 
-		int snapshotWidth = 2047;
-		ImagePlus snapshot = univ.takeSnapshot(snapshotWidth, snapshotWidth);
-		univ.close();
+			// set background
 
-		// downsample
+			float background = 1.0f;
+			ImageCanvas3D canvas = (ImageCanvas3D)univ.getCanvas();
+			canvas.getBG().setColor(background, background, background);
 
-		int w2 = 400;
-		int h2 = 400;
-		IJ.run(snapshot, "downsample ", "width=" + w2 + " height=" + h2 + " source=0.50 target=0.50 keep");
+			// take snapshot
 
-		// write label
-		ImagePlus smallImage = IJ.getImage();
-		if (label != null && !label.equals(""))
-			drawOutlineText(smallImage.getProcessor(), label, 24, 30, smallImage.getHeight() - 30);
+			int factor = Math.max(1, Math.min(4, 2047 / Math.max(w2, h2)));
+			ImagePlus snapshot = univ.takeSnapshot(factor * w2, factor * h2);
+			univ.close();
 
-		// autocrop
-		Rectangle rect = Select_Bounding_Box.getBoundingBox(smallImage.getProcessor(), null, 0xffffffff);
-		Select_Bounding_Box.crop(smallImage, rect);
-		smallImage.updateAndDraw();
+			// downsample
+
+			ImageProcessor large = snapshot.getProcessor();
+			if (!(large instanceof ColorProcessor))
+				large = large.convertToRGB();
+			ColorProcessor small = new ColorProcessor(w2, h2);
+			downsample((ColorProcessor)large, small);
+			return new ImagePlus("Prettified screenshot", small);
+		}
+	}
+
+	/**
+	 * Renders the screenshot turned by {@link #ANGLE} in perspective,
+	 * standing on its reflection, onto a white canvas of the given size.
+	 *
+	 * This needs neither Java3D nor a display, and renders at the target
+	 * size directly: each output pixel is mapped back onto the screenshot
+	 * (or its reflection) and averaged over the source pixels it covers.
+	 */
+	public static ColorProcessor render(ColorProcessor ip,
+			ColorProcessor mirror, int width, int height) {
+		int[] result = new int[width * height];
+		render((int[])ip.getPixels(), (int[])mirror.getPixels(),
+				ip.getWidth(), ip.getHeight(),
+				result, width, height);
+		return new ColorProcessor(width, height, result);
+	}
+
+	public static void render(final int[] pixels, final int[] mirror,
+			final int w, final int h,
+			final int[] result, final int width, final int height) {
+		// the camera looks at the screenshot's center from this distance
+		final double cos = Math.cos(ANGLE), sin = Math.sin(ANGLE);
+		final double distance = 2 * Math.max(w, 2 * h);
+
+		// fit the projected screenshot and reflection into the canvas
+		double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			double x = (i & 1) == 0 ? -w / 2.0 : w / 2.0;
+			double y = (i & 2) == 0 ? -h / 2.0 : 3 * h / 2.0;
+			double f = distance / (distance + x * sin);
+			minX = Math.min(minX, x * cos * f);
+			maxX = Math.max(maxX, x * cos * f);
+			minY = Math.min(minY, y * f);
+			maxY = Math.max(maxY, y * f);
+		}
+		final double scale = Math.min((width - 2) / (maxX - minX),
+				(height - 2) / (maxY - minY));
+		final double offsetX = (width - scale * (maxX - minX)) / 2
+			- scale * minX;
+		final double offsetY = (height - scale * (maxY - minY)) / 2
+			- scale * minY;
+
+		// supersample as finely as the nearest edge needs it
+		double uStep = Math.abs(unproject(maxX, distance, cos, sin)
+				- unproject(maxX - 1 / scale, distance, cos, sin));
+		uStep = Math.max(uStep, Math.abs(unproject(minX, distance,
+					cos, sin) - unproject(minX + 1 / scale,
+					distance, cos, sin)));
+		double vStep = (distance + w / 2.0 * sin) / distance / scale;
+		final int k = Math.max(1, Math.min(8,
+				(int)Math.ceil(Math.max(uStep, vStep))));
+
+		// the screenshot's x and perspective factor per sample column
+		final double[] us = new double[width * k];
+		final double[] factors = new double[width * k];
+		for (int i = 0; i < us.length; i++) {
+			double sx = ((i + 0.5) / k - offsetX) / scale;
+			double denominator = distance * cos - sx * sin;
+			if (denominator <= 0) {
+				us[i] = -1;
+				continue;
+			}
+			double x = sx * distance / denominator;
+			us[i] = x + w / 2.0;
+			factors[i] = (distance + x * sin) / distance;
+		}
+
+		forRows(height, new RowKernel() {
+			public void rows(int start, int end) {
+				int samples = k * k;
+				for (int py = start; py < end; py++)
+					for (int px = 0; px < width; px++) {
+						int r = 0, g = 0, b = 0;
+						for (int j = 0; j < k; j++) {
+							double sy = (py + (j + 0.5) / k - offsetY) / scale;
+							for (int i = px * k; i < (px + 1) * k; i++) {
+								int value = sample(pixels, mirror, w, h,
+									us[i], sy * factors[i] + h / 2.0, k == 1);
+								r += (value >> 16) & 0xff;
+								g += (value >> 8) & 0xff;
+								b += value & 0xff;
+							}
+						}
+						result[px + py * width] = 0xff000000
+							| ((r / samples) << 16)
+							| ((g / samples) << 8) | (b / samples);
+					}
+			}
+		});
+	}
+
+	/**
+	 * Shrinks (or enlarges) the source to the size of the target by
+	 * averaging the area each target pixel covers.
+	 */
+	public static void downsample(ColorProcessor source,
+			ColorProcessor target) {
+		downsample((int[])source.getPixels(), source.getWidth(),
+			source.getHeight(), (int[])target.getPixels(),
+			target.getWidth(), target.getHeight());
+	}
+
+	public static void downsample(final int[] source, final int sw,
+			final int sh, final int[] target, final int tw,
+			final int th) {
+		final double scaleX = sw / (double)tw, scaleY = sh / (double)th;
+		final double area = scaleX * scaleY;
+		forRows(th, new RowKernel() {
+			public void rows(int start, int end) {
+				// the weighted sums of the source rows, per channel
+				double[] sums = new double[3 * sw];
+				for (int ty = start; ty < end; ty++) {
+					Arrays.fill(sums, 0);
+					double y0 = ty * scaleY, y1 = y0 + scaleY;
+					for (int sy = (int)y0; sy < y1 && sy < sh; sy++) {
+						double weight = Math.min(sy + 1, y1)
+							- Math.max(sy, y0);
+						for (int sx = 0, i = sy * sw; sx < sw; sx++, i++) {
+							int value = source[i];
+							sums[3 * sx] += weight * ((value >> 16) & 0xff);
+							sums[3 * sx + 1] += weight * ((value >> 8) & 0xff);
+							sums[3 * sx + 2] += weight * (value & 0xff);
+						}
+					}
+					for (int tx = 0; tx < tw; tx++) {
+						double x0 = tx * scaleX, x1 = x0 + scaleX;
+						double r = 0, g = 0, b = 0;
+						for (int sx = (int)x0; sx < x1 && sx < sw; sx++) {
+							double weight = Math.min(sx + 1, x1)
+								- Math.max(sx, x0);
+							r += weight * sums[3 * sx];
+							g += weight * sums[3 * sx + 1];
+							b += weight * sums[3 * sx + 2];
+						}
+						target[tx + ty * tw] = 0xff000000
+							| (clamp(r / area) << 16)
+							| (clamp(g / area) << 8) | clamp(b / area);
+					}
+				}
+			}
+		});
+	}
+
+	protected static int clamp(double value) {
+		return Math.max(0, Math.min(255, (int)(value + 0.5)));
+	}
+
+	protected static double unproject(double sx, double distance,
+			double cos, double sin) {
+		return sx * distance / (distance * cos - sx * sin);
+	}
+
+	/* Returns the screenshot (v < h) or its reflection (v < 2h), or white */
+	protected static int sample(int[] pixels, int[] mirror, int w, int h,
+			double u, double v, boolean interpolate) {
+		if (u < 0 || v < 0 || u >= w || v >= 2 * h)
+			return 0xffffffff;
+		int[] source = pixels;
+		if (v >= h) {
+			source = mirror;
+			v -= h;
+		}
+		if (!interpolate)
+			return source[(int)u + (int)v * w];
+
+		// bilinear interpolation between pixel centers
+		u = Math.max(0, u - 0.5);
+		v = Math.max(0, v - 0.5);
+		int x = (int)u, y = (int)v;
+		int x1 = Math.min(x + 1, w - 1), y1 = Math.min(y + 1, h - 1);
+		double dx = u - x, dy = v - y;
+		int v00 = source[x + y * w], v10 = source[x1 + y * w];
+		int v01 = source[x + y1 * w], v11 = source[x1 + y1 * w];
+		int result = 0xff000000;
+		for (int shift = 0; shift < 24; shift += 8) {
+			double top = ((v00 >> shift) & 0xff) * (1 - dx)
+				+ ((v10 >> shift) & 0xff) * dx;
+			double bottom = ((v01 >> shift) & 0xff) * (1 - dx)
+				+ ((v11 >> shift) & 0xff) * dx;
+			result |= (int)(top * (1 - dy) + bottom * dy + 0.5) << shift;
+		}
+		return result;
+	}
+
+	protected interface RowKernel {
+		void rows(int start, int end);
+	}
+
+	protected static ForkJoinPool pool;
+
+	protected synchronized static ForkJoinPool getPool() {
+		if (pool == null)
+			pool = new ForkJoinPool(Math.max(1, Prefs.getThreads()));
+		return pool;
+	}
+
+	/* Runs the kernel on bands of rows, in parallel */
+	protected static void forRows(int height, RowKernel kernel) {
+		int grain = Math.max(1, height / (4 * getPool().getParallelism()));
+		getPool().invoke(new Rows(kernel, 0, height, grain));
+	}
+
+	protected static class Rows extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		protected final RowKernel kernel;
+		protected final int start, end, grain;
+
+		public Rows(RowKernel kernel, int start, int end, int grain) {
+			this.kernel = kernel;
+			this.start = start;
+			this.end = end;
+			this.grain = grain;
+		}
+
+		protected void compute() {
+			if (end - start <= grain) {
+				kernel.rows(start, end);
+				return;
+			}
+			int middle = (start + end) >>> 1;
+			invokeAll(new Rows(kernel, start, middle, grain),
+				new Rows(kernel, middle, end, grain));
+		}
 	}
 
 	public static void drawOutlineText(ImageProcessor ip, String string, int size, int x, int y) {
 		Font font = new Font("Arial", Font.BOLD, size);
+		if (ip instanceof ColorProcessor) {
+			OutlineText.get(string, font).draw((int[])ip.getPixels(),
+				ip.getWidth(), ip.getHeight(), x, y);
+			return;
+		}
 		int[][] offsets = {
 			{-1, 0}, {-1, -1}, {0, -1}, {1, -1}, {1, 0}, {1, 1}, {0, 1}, {-1, 1}
 		};
@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * Fiji Developer plugin for Fiji.
+ * %%
+ * Copyright (C) 2009 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji;
+
+import ij.IJ;
+
+import java.awt.AWTException;
+import java.awt.EventQueue;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.Window;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Takes screenshots of the whole screen, a region or a window.
+ *
+ * One Robot is reused for all captures. Snapshots are meant to be taken
+ * on the service's own thread (see {@link #submit(Runnable)}), one after
+ * another, so that the event dispatch thread never waits for them.
+ */
+public class ScreenCapture {
+	protected Robot robot;
+	protected final ExecutorService queue =
+		Executors.newSingleThreadExecutor(MediaWikiClient
+				.daemonThreads("capture"));
+
+	protected synchronized Robot getRobot() throws AWTException {
+		if (robot == null)
+			robot = new Robot();
+		return robot;
+	}
+
+	/*
+	 * Captures the given part of the screen. Off the event dispatch
+	 * thread, pending repaints (e.g. of windows hidden for the snapshot)
+	 * are waited for first.
+	 */
+	public BufferedImage capture(Rectangle region) throws AWTException {
+		Robot robot = getRobot();
+		if (!EventQueue.isDispatchThread())
+			robot.waitForIdle();
+		return robot.createScreenCapture(region);
+	}
+
+	public BufferedImage captureScreen() throws AWTException {
+		return capture(getScreenBounds());
+	}
+
+	public BufferedImage capture(Window window) throws AWTException {
+		return capture(getBounds(window));
+	}
+
+	public static Rectangle getScreenBounds() {
+		return new Rectangle(IJ.getScreenSize());
+	}
+
+	/* Returns the window's bounds on the screen */
+	public static Rectangle getBounds(Window window) {
+		Point location = window.getLocationOnScreen();
+		return new Rectangle(location.x, location.y,
+				window.getWidth(), window.getHeight());
+	}
+
+	/* Queues a task to run on the capture thread */
+	public Future<?> submit(Runnable task) {
+		return queue.submit(task);
+	}
+
+	/* Lets queued captures finish, but accepts no new ones */
+	public void dispose() {
+		queue.shutdown();
+	}
+}
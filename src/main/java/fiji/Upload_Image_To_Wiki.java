@@ -31,15 +31,34 @@ import java.awt.Graphics;
 import java.awt.Toolkit;
 import java.awt.datatransfer.StringSelection;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 public class Upload_Image_To_Wiki implements PlugInFilter {
 	String url = "http://fiji.sc/wiki/index.php";
@@ -53,14 +72,52 @@ public class Upload_Image_To_Wiki implements PlugInFilter {
 
 	public void run(ImageProcessor ip) {
 		BufferedImage image = getBufferedImage(ip);
-		byte[] jpeg = null, png = null;
-		try { jpeg = getBytes(image, "jpeg"); } catch(IOException e) {}
-		try { png = getBytes(image, "png"); } catch(IOException e) {}
-		if (jpeg == null && png == null) {
-			IJ.error("Could not construct JPEG nor PNG");
-			return;
+		try {
+			run(image);
+		} finally {
+			if (encodedFile != null)
+				encodedFile.delete();
+			encodedFile = null;
+		}
+	}
+
+	/* the image encoded into a temporary file, if it was encoded once */
+	File encodedFile;
+
+	void run(BufferedImage image) {
+		EncodedImage contents = null;
+		String sha1 = null;
+		boolean usePNG = false;
+		long[] estimate = estimateSizes(image);
+		if (estimate != null) {
+			// encode only the winner, hashing it on the way to disk
+			usePNG = estimate[0] < estimate[1];
+			MessageDigest digest = WikiFileHashes.newDigest();
+			try {
+				encodedFile = encodeToFile(image,
+					usePNG ? "png" : "jpeg", digest);
+				sha1 = WikiFileHashes.toHex(digest.digest());
+			} catch (IOException e) { /* encode both */ }
+		}
+		if (encodedFile == null) {
+			// too close to call: encode both at the same time
+			Future<EncodedImage> future = encodeAsync(image, "jpeg");
+			EncodedImage png = encodeOrNull(image, "png"), jpeg = null;
+			try {
+				jpeg = future.get();
+			} catch (InterruptedException e) {
+				return;
+			} catch (ExecutionException e) { /* ignore */ }
+			if (jpeg == null && png == null) {
+				IJ.error("Could not construct JPEG nor PNG");
+				return;
+			}
+			usePNG = jpeg == null ||
+				(png != null && jpeg.size() > png.size());
+			EncodedImage encoded = usePNG ? png : jpeg;
+			sha1 = encoded.getSHA1();
+			contents = encoded;
 		}
-		boolean usePNG = jpeg == null || jpeg.length > png.length;
 
 		if (title == null)
 			title = "<name>";
@@ -76,8 +133,17 @@ public class Upload_Image_To_Wiki implements PlugInFilter {
 		}
 		title += usePNG ? ".png" : ".jpg";
 
+		GraphicalMediaWikiClient client =
+			new GraphicalMediaWikiClient(url);
+		String existing = findOnWiki(client, title, sha1);
+		if (existing != null)
+			title = existing;
+
 		GenericDialog gd = new GenericDialog("Upload "
 				+ (usePNG ? "PNG" : "JPEG"));
+		if (existing != null)
+			gd.addMessage("This image is on the wiki already as "
+					+ existing);
 		gd.addStringField("name", title, 30);
 		gd.addStringField("summary", title, 30);
 		gd.addCheckbox("copy [[Image:<name>]] to clipboard", true);
@@ -89,20 +155,48 @@ public class Upload_Image_To_Wiki implements PlugInFilter {
 		String summary = gd.getNextString();
 		boolean copyToClipboard = gd.getNextBoolean();
 
-		GraphicalMediaWikiClient client =
-			new GraphicalMediaWikiClient(url);
-		if (!client.login())
-			return;
-		if (!client.uploadFile(title, summary, usePNG ? png : jpeg))
-			IJ.error("Failed to upload " + title);
-		client.logOut();
+		if (!title.equals(existing)) {
+			if (!client.login())
+				return;
+			boolean uploaded;
+			if (encodedFile != null) {
+				// kept by the client while the upload can be resumed
+				uploaded = client.uploadTemporaryFile(title, summary,
+						encodedFile);
+				encodedFile = null;
+			}
+			else
+				uploaded = client.uploadFile(title, summary, contents);
+			if (uploaded)
+				WikiFileHashes.getDefault().put(client, sha1, title);
+			else
+				IJ.error("Failed to upload " + title);
+			client.logOut();
+		}
 
 		if (copyToClipboard)
 			copyToClipboard();
 	}
 
+	/* Returns the name of a file with the same contents on the wiki */
+	String findOnWiki(MediaWikiClient client, String name, String sha1) {
+		try {
+			return WikiFileHashes.getDefault().findOnWiki(client,
+				Collections.singletonMap(name, sha1), null)
+				.get(name);
+		} catch (IOException e) {
+			System.err.println("Could not look up " + name + ": "
+					+ e.getMessage());
+			return null;
+		}
+	}
+
 	BufferedImage getBufferedImage(ImageProcessor ip) {
-		BufferedImage image = ip.getBufferedImage();
+		// 8-bit and RGB images are encoded from their own pixels
+		BufferedImage image = ImageBridge.toBufferedImage(ip);
+		if (image != null)
+			return image;
+		image = ip.getBufferedImage();
 		if (!ip.isDefaultLut())
 			return image;
 
@@ -117,26 +211,209 @@ public class Upload_Image_To_Wiki implements PlugInFilter {
 		return gray;
 	}
 
-	byte[] getBytes(BufferedImage image, String format) throws IOException {
-		Iterator iter = ImageIO.getImageWritersByFormatName(format);
-		ImageWriter writer = (ImageWriter)iter.next();
-		if (writer == null)
+	final static int TILE_SIZE = 64, SAMPLE_TILES = 48;
+	/* how much the estimated sizes must differ to trust them */
+	double minimalRatio = 1.25;
+
+	/**
+	 * Estimates the sizes of the image as PNG and as JPEG, by encoding a
+	 * mosaic of tiles sampled all over the image.
+	 *
+	 * Returns null if the image is small enough to simply encode it both
+	 * ways, or if the estimates are too close to tell which format wins.
+	 * The more the tiles differ in their complexity, the less the sample
+	 * is trusted.
+	 */
+	long[] estimateSizes(BufferedImage image) {
+		int tilesX = image.getWidth() / TILE_SIZE;
+		int tilesY = image.getHeight() / TILE_SIZE;
+		if (tilesX * tilesY < 4 * SAMPLE_TILES)
 			return null;
-		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-		ImageOutputStream ios = ImageIO.createImageOutputStream(bytes);
-		writer.setOutput(ios);
-		ImageWriteParam param = writer.getDefaultWriteParam();
-		if (format.equals("jpeg")) {
-			param.setCompressionMode(param.MODE_EXPLICIT);
-			param.setCompressionQuality(jpegQuality / 100f);
-			if (jpegQuality == 100)
-				param.setSourceSubsampling(1, 1, 0, 0);
-		}
-		IIOImage iioImage = new IIOImage(image, null, null);
-		writer.write(null, iioImage, param);
-		ios.close();
-		writer.dispose();
-		return bytes.toByteArray();
+
+		int columns = 8, rows = SAMPLE_TILES / columns;
+		ColorModel colorModel = image.getColorModel();
+		WritableRaster source = image.getRaster();
+		WritableRaster target = colorModel.createCompatibleWritableRaster(
+				columns * TILE_SIZE, rows * TILE_SIZE);
+		BufferedImage mosaic = new BufferedImage(colorModel, target,
+				image.isAlphaPremultiplied(), null);
+		double[] entropies = new double[SAMPLE_TILES];
+		int[] histogram = new int[256];
+		for (int i = 0; i < SAMPLE_TILES; i++) {
+			// one tile per band of rows, columns scattered evenly
+			int tileY = i * tilesY / SAMPLE_TILES;
+			int tileX = (int)(((i * 0.6180339887) % 1) * tilesX);
+			Raster tile = source.createChild(tileX * TILE_SIZE,
+					tileY * TILE_SIZE, TILE_SIZE, TILE_SIZE,
+					0, 0, null);
+			target.setRect((i % columns) * TILE_SIZE,
+					(i / columns) * TILE_SIZE, tile);
+			entropies[i] = getResidualEntropy(tile, histogram);
+		}
+
+		long[] result = new long[2];
+		try {
+			double scale = (double)tilesX * tilesY / SAMPLE_TILES;
+			result[0] = (long)(encode(mosaic, "png").size() * scale);
+			result[1] = (long)(encode(mosaic, "jpeg").size() * scale);
+		} catch (IOException e) {
+			return null;
+		}
+
+		double mean = 0, variance = 0;
+		for (double entropy : entropies)
+			mean += entropy / SAMPLE_TILES;
+		for (double entropy : entropies)
+			variance += (entropy - mean) * (entropy - mean)
+				/ SAMPLE_TILES;
+		double ratio = minimalRatio
+			* (1 + (mean > 0 ? Math.sqrt(variance) / mean : 0));
+		if (result[0] * ratio > result[1] &&
+				result[1] * ratio > result[0])
+			return null;
+		return result;
+	}
+
+	/*
+	 * Returns the entropy (in bits per sample) of the differences between
+	 * horizontally neighbouring samples, a measure of how well the tile
+	 * compresses.
+	 */
+	static double getResidualEntropy(Raster tile, int[] histogram) {
+		Arrays.fill(histogram, 0);
+		int width = tile.getWidth(), height = tile.getHeight();
+		int bands = tile.getNumBands();
+		int[] row = new int[width * bands];
+		for (int y = 0; y < height; y++) {
+			tile.getPixels(0, y, width, 1, row);
+			for (int i = bands; i < row.length; i++)
+				histogram[(row[i] - row[i - bands]) & 0xff]++;
+		}
+		double total = height * (width - 1) * bands, entropy = 0;
+		for (int count : histogram)
+			if (count > 0)
+				entropy -= count / total
+					* Math.log(count / total) / Math.log(2);
+		return entropy;
+	}
+
+	Future<EncodedImage> encodeAsync(final BufferedImage image,
+			final String format) {
+		return MediaWikiClient.getAsyncExecutor().submit(
+				new Callable<EncodedImage>() {
+			@Override
+			public EncodedImage call() {
+				return encodeOrNull(image, format);
+			}
+		});
+	}
+
+	EncodedImage encodeOrNull(BufferedImage image, String format) {
+		try {
+			return encode(image, format);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	EncodedImage encode(BufferedImage image, String format)
+			throws IOException {
+		EncodedImage result = new EncodedImage();
+		write(image, format, result);
+		return result;
+	}
+
+	/* Encodes the image into a temporary file, updating the digest */
+	File encodeToFile(BufferedImage image, String format,
+			MessageDigest digest) throws IOException {
+		File file = File.createTempFile("wiki-image",
+				format.equals("png") ? ".png" : ".jpg");
+		try {
+			OutputStream out = new DigestOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file),
+					1 << 16), digest);
+			try {
+				write(image, format, out);
+			} finally {
+				out.close();
+			}
+			return file;
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		} catch (RuntimeException e) {
+			file.delete();
+			throw e;
+		}
+	}
+
+	/* image writers are expensive to look up; keep them for reuse */
+	final static Map<String, Queue<ImageWriter>> writers =
+		new ConcurrentHashMap<String, Queue<ImageWriter>>();
+
+	void write(BufferedImage image, String format, OutputStream out)
+			throws IOException {
+		if (format.equals("png") && PNGEncoder.canEncode(image)) {
+			new PNGEncoder().write(image, out);
+			return;
+		}
+		Queue<ImageWriter> queue = writers.get(format);
+		if (queue == null) {
+			writers.putIfAbsent(format,
+				new ConcurrentLinkedQueue<ImageWriter>());
+			queue = writers.get(format);
+		}
+		ImageWriter writer = queue.poll();
+		if (writer == null) {
+			Iterator<ImageWriter> iter =
+				ImageIO.getImageWritersByFormatName(format);
+			if (!iter.hasNext())
+				throw new IOException("No writer for " + format);
+			writer = iter.next();
+		}
+		try {
+			// caches only what the writer needs to seek back to
+			ImageOutputStream ios =
+				new MemoryCacheImageOutputStream(out);
+			writer.setOutput(ios);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if (format.equals("jpeg")) {
+				param.setCompressionMode(param.MODE_EXPLICIT);
+				param.setCompressionQuality(jpegQuality / 100f);
+				if (jpegQuality == 100)
+					param.setSourceSubsampling(1, 1, 0, 0);
+			}
+			IIOImage iioImage = new IIOImage(image, null, null);
+			writer.write(null, iioImage, param);
+			ios.close();
+			writer.reset();
+			queue.offer(writer);
+		} catch (IOException e) {
+			writer.dispose();
+			throw e;
+		} catch (RuntimeException e) {
+			writer.dispose();
+			throw e;
+		}
+	}
+
+	/* An encoded image, uploaded from its buffer without copying */
+	static class EncodedImage extends ByteArrayOutputStream
+			implements MediaWikiClient.StreamingContents {
+		EncodedImage() {
+			super(1 << 16);
+		}
+
+		@Override
+		public long getLength() {
+			return size();
+		}
+
+		String getSHA1() {
+			MessageDigest digest = WikiFileHashes.newDigest();
+			digest.update(buf, 0, count);
+			return WikiFileHashes.toHex(digest.digest());
+		}
 	}
 
 	void copyToClipboard() {
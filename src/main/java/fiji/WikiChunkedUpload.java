@@ -0,0 +1,329 @@
+/*-
+ * #%L
+ * Fiji Developer plugin for Fiji.
+ * %%
+ * Copyright (C) 2009 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji;
+
+import ij.IJ;
+import ij.Prefs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Uploads a large file with MediaWiki's chunked upload protocol.
+ *
+ * The file is sent to the upload stash in chunks, each of which is retried
+ * on its own, and is then published in a final request. After every chunk,
+ * the stash's file key and the offset are written to disk, so that an
+ * interrupted upload of the same contents continues where it stopped, even
+ * from a different (e.g. temporary) file. If the
+ * answer to a chunk got lost, and the wiki rejects the chunk when it is
+ * sent again, the offset is looked up in the stash.
+ *
+ * MediaWiki insists on receiving the chunks of a file in order; parallelism
+ * comes from uploading several files at the same time.
+ */
+public class WikiChunkedUpload {
+	public final static long CHUNK_SIZE = 4 << 20;
+	/* MediaWiki's default $wgUploadStashMaxAge; older stashes are gone */
+	public final static long STASH_MAX_AGE = 6 * 3600 * 1000L;
+
+	protected final MediaWikiClient client;
+	protected final String fileName, summary;
+	protected final File file;
+	protected File stateFile;
+	protected String fileKey;
+	protected long offset;
+
+	/*
+	 * Whether the file is a temporary copy: it is then kept for as long
+	 * as the upload can be resumed, and deleted afterwards.
+	 */
+	public boolean temporary;
+
+	public WikiChunkedUpload(MediaWikiClient client, String fileName,
+			String summary, File file) {
+		this.client = client;
+		this.fileName = fileName;
+		this.summary = summary;
+		this.file = file;
+	}
+
+	public boolean run() throws IOException {
+		try {
+			return upload();
+		} finally {
+			if (temporary && (stateFile == null || !stateFile.exists()))
+				file.delete();
+		}
+	}
+
+	protected boolean upload() throws IOException {
+		purgeStaleStates();
+		stateFile = new File(getStateDirectory(),
+				getStateKey() + ".properties");
+		long size = file.length();
+		boolean restarted = !loadState();
+		while (offset < size) {
+			long length = Math.min(CHUNK_SIZE, size - offset);
+			String[] postVars = {
+				"filename", fileName,
+				"filesize", "" + size,
+				"offset", "" + offset,
+				"stash", "1",
+				"ignorewarnings", "1",
+				"filekey", fileKey
+			};
+			Object[] fileVars = {
+				"chunk", fileName,
+				new MediaWikiClient.FileSlice(file, offset, length)
+			};
+			Object result = send(postVars, fileVars);
+			String status = JSON.getString(result, "upload", "result");
+			if (!"Continue".equals(status) && !"Success".equals(status)) {
+				long stashed = fileKey == null ? -1 : getStashedSize();
+				if (stashed > offset && stashed <= size) {
+					// the chunk had arrived, but the answer got lost
+					offset = stashed;
+					saveState();
+					continue;
+				}
+				if (!restarted) {
+					// the stash expired, or lost track of a chunk
+					restarted = true;
+					restart();
+					continue;
+				}
+				System.err.println("Failed: " + client.response);
+				clearState();
+				return false;
+			}
+			fileKey = JSON.getString(result, "upload", "filekey");
+			offset = "Success".equals(status) ? size :
+				JSON.getLong(result, offset + length,
+						"upload", "offset");
+			saveState();
+			if (IJ.debugMode)
+				System.err.println("Uploaded " + offset + "/" + size
+						+ " bytes of " + fileName);
+		}
+
+		String[] postVars = {
+			"filename", fileName,
+			"filekey", fileKey,
+			"comment", summary,
+			"ignorewarnings", "1"
+		};
+		Object result = send(postVars, null);
+		if ("Success".equals(JSON.getString(result, "upload", "result"))) {
+			clearState();
+			return true;
+		}
+		System.err.println("Failed: " + client.response);
+		// a stash that could not be published is useless
+		clearState();
+		return false;
+	}
+
+	/* Sends one request, retrying it on connection problems and bad tokens */
+	protected Object send(String[] postVars, Object[] fileVars)
+			throws IOException {
+		String[] getVars = {
+			"action", "upload"
+		};
+		boolean newToken = false;
+		for (int attempt = 1; ; attempt++) {
+			String token = client.getAPIEditToken();
+			if (token == null)
+				throw new IOException("The wiki has no api.php");
+			String[] vars = new String[postVars.length + 2];
+			System.arraycopy(postVars, 0, vars, 0, postVars.length);
+			vars[vars.length - 2] = "token";
+			vars[vars.length - 1] = token;
+			try {
+				Object result = MediaWikiClient.parseAPIResponse(client
+					.sendAPIRequestText(getVars, vars, fileVars));
+				if (!newToken && MediaWikiClient.isBadToken(result)) {
+					newToken = true;
+					client.invalidateEditToken();
+					continue;
+				}
+				return result;
+			} catch (IOException e) {
+				if (attempt >= client.maxAttempts ||
+						(e instanceof InterruptedIOException &&
+						 !(e instanceof SocketTimeoutException)))
+					throw e;
+				client.backOff(attempt, 0);
+			}
+		}
+	}
+
+	/*
+	 * Returns how many bytes the stash holds for the current file key, or
+	 * -1 if the wiki does not know the key (any more).
+	 */
+	protected long getStashedSize() throws IOException {
+		String[] getVars = {
+			"action", "query",
+			"prop", "stashimageinfo",
+			"siifilekey", fileKey,
+			"siiprop", "size"
+		};
+		Object result = client.sendAPIRequest(getVars, null);
+		if (JSON.getString(result, "error", "code") != null)
+			return -1;
+		List<Object> info = JSON.getList(result,
+				"query", "stashimageinfo");
+		if (info == null || info.isEmpty())
+			return -1;
+		return JSON.getLong(info.get(0), -1, "size");
+	}
+
+	protected void restart() {
+		clearState();
+		fileKey = null;
+		offset = 0;
+	}
+
+	/* Returns whether a previous, interrupted upload is continued */
+	protected boolean loadState() {
+		Properties state = readState(stateFile);
+		if (state == null)
+			return false;
+		try {
+			// the same contents, kept in a different file
+			String previous = state.getProperty("file");
+			if (isTemporary(state) &&
+					!file.getAbsolutePath().equals(previous)) {
+				new File(previous).delete();
+				state.remove("temporary");
+			}
+			fileKey = state.getProperty("filekey");
+			offset = Long.parseLong(state.getProperty("offset", "0"));
+			if (fileKey == null || offset <= 0) {
+				restart();
+				return false;
+			}
+			IJ.log("Resuming upload of " + fileName + " at "
+					+ offset + " bytes");
+			return true;
+		} catch (Exception e) {
+			restart();
+			return false;
+		}
+	}
+
+	protected void saveState() {
+		File directory = stateFile.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs())
+			return;
+		Properties state = new Properties();
+		state.setProperty("filekey", fileKey);
+		state.setProperty("offset", "" + offset);
+		state.setProperty("file", file.getAbsolutePath());
+		state.setProperty("filename", fileName);
+		if (temporary)
+			state.setProperty("temporary", "true");
+		try {
+			OutputStream out = new FileOutputStream(stateFile);
+			try {
+				state.store(out, "Chunked upload to " + client.apiURI);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not save upload state: "
+					+ e.getMessage());
+		}
+	}
+
+	protected void clearState() {
+		deleteState(stateFile, file);
+	}
+
+	protected static File getStateDirectory() {
+		return new File(Prefs.getPrefsDir(), "wiki-upload-state");
+	}
+
+	protected static Properties readState(File stateFile) {
+		if (!stateFile.exists())
+			return null;
+		Properties state = new Properties();
+		try {
+			InputStream in = new FileInputStream(stateFile);
+			try {
+				state.load(in);
+			} finally {
+				in.close();
+			}
+			return state;
+		} catch (IOException e) {
+			return state;
+		}
+	}
+
+	protected static boolean isTemporary(Properties state) {
+		return "true".equals(state.getProperty("temporary")) &&
+			state.getProperty("file") != null;
+	}
+
+	/*
+	 * Deletes a saved state, and the temporary copy of the contents it
+	 * kept around (unless that is the given file, which is still used).
+	 */
+	protected static void deleteState(File stateFile, File inUse) {
+		Properties state = readState(stateFile);
+		if (state != null && isTemporary(state) && (inUse == null ||
+				!inUse.getAbsolutePath()
+				.equals(state.getProperty("file"))))
+			new File(state.getProperty("file")).delete();
+		stateFile.delete();
+	}
+
+	/* Forgets uploads whose stash has expired on the wiki by now */
+	protected static void purgeStaleStates() {
+		File[] stateFiles = getStateDirectory().listFiles();
+		if (stateFiles == null)
+			return;
+		long now = System.currentTimeMillis();
+		for (File stateFile : stateFiles)
+			if (stateFile.getName().endsWith(".properties") &&
+					now - stateFile.lastModified() > STASH_MAX_AGE)
+				deleteState(stateFile, null);
+	}
+
+	/* Identifies this upload: same wiki, same target, same contents */
+	protected String getStateKey() throws IOException {
+		String key = client.apiURI + "\n" + fileName + "\n"
+			+ file.length() + "\n"
+			+ WikiFileHashes.getDefault().sha1(file);
+		return WikiFileHashes.sha1(key.getBytes("UTF-8"));
+	}
+}
@@ -0,0 +1,286 @@
+/*-
+ * #%L
+ * Fiji Developer plugin for Fiji.
+ * %%
+ * Copyright (C) 2009 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji;
+
+import ij.Prefs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Finds out whether files are on the wiki already, by their SHA-1.
+ *
+ * The names under which contents were seen on a wiki are remembered on
+ * disk. Before such a name is trusted, the wiki is asked (in batches) for
+ * that file's hash; only contents never seen before need one query each,
+ * and those queries are sent concurrently.
+ */
+public class WikiFileHashes {
+	protected final File file;
+	protected Properties index;
+
+	/* hashes of local files, by path, valid as long as size and date match */
+	protected final Map<String, String[]> fileHashes =
+		new HashMap<String, String[]>();
+
+	public WikiFileHashes(File file) {
+		this.file = file;
+	}
+
+	protected static WikiFileHashes defaultHashes;
+
+	public synchronized static WikiFileHashes getDefault() {
+		if (defaultHashes == null)
+			defaultHashes = new WikiFileHashes(new File(Prefs.getPrefsDir(),
+					"wiki-file-hashes.properties"));
+		return defaultHashes;
+	}
+
+	/**
+	 * Returns the names of the files on the wiki which have the same
+	 * contents as the given ones (passed as name to SHA-1 map). Names
+	 * without a match are left out.
+	 *
+	 * Pass what is already known about the given names to avoid asking
+	 * for it again, or null.
+	 */
+	public Map<String, String> findOnWiki(MediaWikiClient client,
+			Map<String, String> sha1ByName,
+			Map<String, MediaWikiClient.ImageInfo> known)
+			throws IOException {
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		if (!client.hasAPI())
+			return result;
+
+		List<String> lookup = new ArrayList<String>();
+		for (String name : sha1ByName.keySet()) {
+			if (known == null || !known.containsKey(name))
+				lookup.add(name);
+			String candidate = get(client, sha1ByName.get(name));
+			if (candidate != null && !candidate.equals(name) &&
+					(known == null ||
+					 !known.containsKey(candidate)) &&
+					!lookup.contains(candidate))
+				lookup.add(candidate);
+		}
+		Map<String, MediaWikiClient.ImageInfo> infos =
+			new HashMap<String, MediaWikiClient.ImageInfo>();
+		if (known != null)
+			infos.putAll(known);
+		if (!lookup.isEmpty())
+			infos.putAll(client.getImageInfo(lookup));
+
+		/*
+		 * Contents that are neither under their own name nor where the
+		 * index says are searched for, all at the same time
+		 */
+		Map<String, String> existing = new HashMap<String, String>();
+		Map<String, CompletableFuture<String>> searches =
+			new HashMap<String, CompletableFuture<String>>();
+		try {
+			for (String name : sha1ByName.keySet()) {
+				String sha1 = sha1ByName.get(name);
+				if (matches(infos.get(name), sha1)) {
+					existing.put(name, name);
+					continue;
+				}
+				String candidate = get(client, sha1);
+				if (candidate != null && matches(infos.get(candidate),
+							sha1)) {
+					existing.put(name, candidate);
+					continue;
+				}
+				if (candidate != null)
+					remove(client, sha1);
+				if (!searches.containsKey(sha1))
+					searches.put(sha1, client.findFileBySHA1Async(sha1));
+			}
+
+			for (String name : sha1ByName.keySet()) {
+				String sha1 = sha1ByName.get(name);
+				String found = existing.get(name);
+				if (found == null && searches.containsKey(sha1)) {
+					found = searches.get(sha1).get();
+					if (found != null)
+						found = found.replace(' ', '_');
+				}
+				if (found != null) {
+					put(client, sha1, found);
+					result.put(name, found);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while "
+					+ "searching the wiki");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(cause);
+		} finally {
+			for (CompletableFuture<String> search : searches.values())
+				search.cancel(true);
+		}
+		return result;
+	}
+
+	protected static boolean matches(MediaWikiClient.ImageInfo info,
+			String sha1) {
+		return info != null && info.exists && sha1.equals(info.sha1);
+	}
+
+	/* Remembers that the wiki has a file with the given contents */
+	public synchronized void put(MediaWikiClient client, String sha1,
+			String name) {
+		load();
+		if (name.equals(index.setProperty(getKey(client, sha1), name)))
+			return;
+		save();
+	}
+
+	protected synchronized String get(MediaWikiClient client,
+			String sha1) {
+		load();
+		return index.getProperty(getKey(client, sha1));
+	}
+
+	protected synchronized void remove(MediaWikiClient client,
+			String sha1) {
+		load();
+		if (index.remove(getKey(client, sha1)) != null)
+			save();
+	}
+
+	protected static String getKey(MediaWikiClient client, String sha1) {
+		return client.apiURI + "#" + sha1;
+	}
+
+	protected void load() {
+		if (index != null)
+			return;
+		index = new Properties();
+		if (!file.exists())
+			return;
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				index.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not read " + file + ": "
+					+ e.getMessage());
+		}
+	}
+
+	protected void save() {
+		File directory = file.getParentFile();
+		if (directory != null && !directory.isDirectory() &&
+				!directory.mkdirs())
+			return;
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				index.store(out, "Files known to be on wikis, "
+						+ "by SHA-1");
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file))
+					tmp.delete();
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			System.err.println("Could not write " + file + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/* Returns the SHA-1 of a file, remembering it until the file changes */
+	public String sha1(File file) throws IOException {
+		String path = file.getAbsolutePath();
+		String stamp = file.length() + ":" + file.lastModified();
+		synchronized (fileHashes) {
+			String[] cached = fileHashes.get(path);
+			if (cached != null && cached[0].equals(stamp))
+				return cached[1];
+		}
+		MessageDigest digest = newDigest();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			for (;;) {
+				int count = in.read(buffer);
+				if (count < 0)
+					break;
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		String sha1 = toHex(digest.digest());
+		synchronized (fileHashes) {
+			fileHashes.put(path, new String[] { stamp, sha1 });
+		}
+		return sha1;
+	}
+
+	public static String sha1(byte[] bytes) {
+		return toHex(newDigest().digest(bytes));
+	}
+
+	protected static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder();
+		for (byte b : bytes)
+			builder.append(String.format("%02x", b & 0xff));
+		return builder.toString();
+	}
+}
@@ -0,0 +1,169 @@
+/*-
+ * #%L
+ * Fiji Developer plugin for Fiji.
+ * %%
+ * Copyright (C) 2009 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji;
+
+import ij.Prefs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * An on-disk cache of page sources, keyed by wiki and page title.
+ *
+ * Before a cached page is served, the wiki is asked for the id of the
+ * page's latest revision; the source is only downloaded again if that
+ * changed. The cache is bounded in size; the least recently used pages are
+ * evicted first.
+ */
+public class WikiPageCache {
+	protected final File directory;
+	protected final long maxBytes;
+
+	public WikiPageCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	protected static WikiPageCache defaultCache;
+
+	public synchronized static WikiPageCache getDefault() {
+		if (defaultCache == null)
+			defaultCache = new WikiPageCache(new File(Prefs.getPrefsDir(),
+					"wiki-page-cache"), 16 << 20);
+		return defaultCache;
+	}
+
+	/**
+	 * Returns the source of a page, or null if the wiki cannot tell the
+	 * latest revision of a page (i.e. it has no api.php).
+	 */
+	public String getPageSource(MediaWikiClient client, String title)
+			throws IOException {
+		long latest = client.getLatestRevisionId(title);
+		if (latest < 0)
+			return null;
+
+		File file = getFile(client.wikiBaseURI, title);
+		if (latest > 0 && file.exists()) {
+			BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file),
+					"UTF-8"));
+			try {
+				String revision = reader.readLine();
+				if (revision != null &&
+						revision.equals("" + latest)) {
+					String source = MediaWikiClient
+						.readFully(reader, (int)file.length());
+					file.setLastModified(System.currentTimeMillis());
+					return source;
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		MediaWikiClient.Revision revision = client.getLatestRevision(title);
+		if (revision == null)
+			return null;
+		if (revision.id > 0)
+			put(file, revision);
+		return revision.content;
+	}
+
+	protected synchronized void put(File file,
+			MediaWikiClient.Revision revision) {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			return;
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			Writer writer = new OutputStreamWriter(
+				new FileOutputStream(tmp), "UTF-8");
+			try {
+				writer.write(revision.id + "\n");
+				writer.write(revision.content);
+			} finally {
+				writer.close();
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file))
+					tmp.delete();
+			}
+			evict();
+		} catch (IOException e) {
+			tmp.delete();
+			System.err.println("Could not cache " + file + ": "
+					+ e.getMessage());
+		}
+	}
+
+	protected void evict() {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		long total = 0;
+		for (File file : files)
+			total += file.length();
+		if (total <= maxBytes)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+			}
+		});
+		for (File file : files) {
+			if (total <= maxBytes)
+				break;
+			long length = file.length();
+			if (file.delete())
+				total -= length;
+		}
+	}
+
+	protected File getFile(String wikiURI, String title) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest((wikiURI + "\n" + title)
+					.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder();
+			for (byte b : hash)
+				name.append(String.format("%02x", b & 0xff));
+			return new File(directory, name.append(".txt").toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * Fiji Developer plugin for Fiji.
+ * %%
+ * Copyright (C) 2009 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji;
+
+import java.io.InterruptedIOException;
+import java.util.Random;
+
+/**
+ * Decides how many wiki requests may be in flight at the same time.
+ *
+ * The limit follows the AIMD scheme: it grows by about one request per
+ * round trip while the wiki answers quickly, and is cut in half when the
+ * wiki throttles us (HTTP 429/503, maxlag) or fails. When the wiki asks us
+ * to come back later (Retry-After), no request is started before then.
+ */
+public class WikiRateController {
+	protected final int maxLimit;
+	protected double limit;
+	protected int inFlight;
+	protected long notBefore;
+
+	/* the fastest recent round trip, slowly forgotten */
+	protected double baseLatency = -1;
+	protected double latencyTolerance = 3;
+
+	protected final Random random = new Random();
+	protected long baseBackoff = 1000, maxBackoff = 60000;
+
+	public WikiRateController(int initialLimit, int maxLimit) {
+		this.limit = initialLimit;
+		this.maxLimit = maxLimit;
+	}
+
+	public synchronized int getLimit() {
+		return (int)limit;
+	}
+
+	/* Blocks until another request may be started */
+	public synchronized void acquire() throws InterruptedIOException {
+		try {
+			for (;;) {
+				long wait = notBefore - System.currentTimeMillis();
+				if (wait > 0)
+					wait(wait);
+				else if (inFlight >= (int)limit)
+					wait();
+				else
+					break;
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while "
+					+ "waiting to send a request");
+		}
+		inFlight++;
+	}
+
+	/*
+	 * Reports a finished request. Pass a negative latency if it says
+	 * nothing about the wiki's load (e.g. a large upload).
+	 */
+	public synchronized void succeeded(long latencyMillis) {
+		inFlight--;
+		boolean slow = false;
+		if (latencyMillis >= 0) {
+			if (baseLatency < 0 || latencyMillis < baseLatency)
+				baseLatency = latencyMillis;
+			else
+				baseLatency += 0.01 * (latencyMillis - baseLatency);
+			slow = latencyMillis > latencyTolerance * baseLatency
+				+ 50;
+		}
+		if (slow)
+			limit = Math.max(1, limit * 0.9);
+		else
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		notifyAll();
+	}
+
+	/* Reports a request that failed or was throttled */
+	public synchronized void failed() {
+		inFlight--;
+		limit = Math.max(1, limit / 2);
+		notifyAll();
+	}
+
+	/* Reports a request that says nothing about the wiki's load, e.g. a 404 */
+	public synchronized void released() {
+		inFlight--;
+		notifyAll();
+	}
+
+	/* Holds back all requests for the given time */
+	public synchronized void pause(long millis) {
+		notBefore = Math.max(notBefore,
+				System.currentTimeMillis() + millis);
+		notifyAll();
+	}
+
+	/*
+	 * Returns how long to wait before the given retry (counting from 0):
+	 * a random time up to an exponentially growing cap ("full jitter"),
+	 * but no less than what the wiki asked for.
+	 */
+	public long getBackoff(int retry, long retryAfterMillis) {
+		long cap = Math.min(maxBackoff, baseBackoff << Math.min(retry, 16));
+		long jittered;
+		synchronized (random) {
+			jittered = (long)(random.nextDouble() * cap);
+		}
+		return Math.max(retryAfterMillis, jittered);
+	}
+}
@@ -54,7 +54,9 @@ import ij.plugin.BrowserLauncher;
 import ij.plugin.JpegWriter;
 import ij.plugin.PNG_Writer;
 import ij.plugin.PlugIn;
+import ij.process.ImageProcessor;
 
+import java.awt.AWTEvent;
 import java.awt.AWTException;
 import java.awt.Button;
 import java.awt.Choice;
@@ -62,12 +64,12 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.Frame;
-import java.awt.Image;
 import java.awt.Panel;
 import java.awt.Rectangle;
-import java.awt.Robot;
 import java.awt.TextField;
 import java.awt.Toolkit;
+import java.awt.Window;
+import java.awt.event.AWTEventListener;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
@@ -78,16 +80,34 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import javax.swing.JMenu;
@@ -132,6 +152,22 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 				imp.changes = false;
 				break;
 			case PNG:
+				if (PNGEncoder.canEncode(imp)) {
+					try {
+						OutputStream out = new BufferedOutputStream(
+							new FileOutputStream(fullFilename));
+						try {
+							new PNGEncoder().write(imp, out);
+						} finally {
+							out.close();
+						}
+						imp.changes = false;
+					} catch (IOException e) {
+						IJ.error("Could not write " + fullFilename
+							+ ": " + e.getMessage());
+					}
+					break;
+				}
 				PNG_Writer pngWriter = new PNG_Writer();
 				try {
 					pngWriter.writeImage(imp, fullFilename, -1);
@@ -218,8 +254,9 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 			title = capitalize(title).replace(' ', '_');
 		else {
 			title = capitalize(title);
-			new Prettify_Wiki_Screenshot().run(screenshot.getProcessor());
-			screenshot = IJ.getImage();
+			screenshot = new Prettify_Wiki_Screenshot()
+				.prettify(screenshot.getProcessor());
+			screenshot.show();
 			String imageTitle = title + "-snapshot" + imageFormat.extension;
 			for (int i = 2; wikiHasImage(imageTitle); i++)
 				imageTitle = title + "-snapshot-" + i + imageFormat.extension;
@@ -273,6 +310,14 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 			public void windowClosed(WindowEvent e) {
 				if (snapshotFrame != null)
 					snapshotFrame.dispose();
+				final MediaWikiClient session = client;
+				if (session != null)
+					MediaWikiClient.getAsyncExecutor().execute(new Runnable() {
+						@Override
+						public void run() {
+							session.logOut();
+						}
+					});
 				editors.remove(this);
 			}
 		});
@@ -331,19 +376,19 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 	public void actionPerformed(ActionEvent e) {
 		Object source = e.getSource();
 		if (source == upload)
-			new Thread() {
+			MediaWikiClient.getAsyncExecutor().execute(new Runnable() {
 				@Override
 				public void run() {
 					upload();
 				}
-			}.start();
+			});
 		else if (source == preview)
-			new Thread() {
+			MediaWikiClient.getAsyncExecutor().execute(new Runnable() {
 				@Override
 				public void run() {
 					preview();
 				}
-			}.start();
+			});
 		else if (source == renameImage)
 			renameImage();
 		else if (source == whiteImage)
@@ -419,14 +464,13 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 		IJ.showStatus("Uploading " + title + "...");
 		IJ.showProgress(0, 1);
 		List<String> images = getImages();
-		if (!saveOrUploadImages(null, images))
-			return;
 
 		getClient();
 
-		if (!client.login("Login for " + URL))
+		if (!login(client, "Login for " + URL))
 			return;
 
+		// saves and uploads the images in one pass
 		if (!saveOrUploadImages(client, images))
 			return;
 
@@ -463,9 +507,9 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 			return;
 		String name = mode == Mode.SCREENSHOT ?
 			"Fiji:Featured_Projects" : this.title;
+		// stay logged in, so that the next preview can reuse the edit token
 		String html = client.uploadOrPreviewPage(name, getText(),
 				"Add " + this.title, true);
-		client.logOut();
 
 		if (html == null) {
 			IJ.error("Could not parse response");
@@ -537,6 +581,18 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 	}
 
 	public String getPageSource(String pageTitle) throws IOException {
+		getClient();
+		try {
+			String cached = WikiPageCache.getDefault()
+				.getPageSource(client, pageTitle);
+			if (cached != null)
+				return cached;
+		} catch (IOException e) {
+			// e.g. when reading needs a login; the edit page handles that
+			if (IJ.debugMode)
+				e.printStackTrace();
+		}
+
 		String result = getPage(pageTitle, "edit");
 		client.logOut();
 		int offset = result.indexOf("id=\"wpTextbox1\"");
@@ -548,7 +604,57 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 		int endOffset = result.indexOf("</textarea>", offset);
 		if (endOffset < 0)
 			return "";
-		return result.substring(offset + 1, endOffset);
+		// the cached source is raw wikitext, too
+		return unescapeHTML(result.substring(offset + 1, endOffset));
+	}
+
+	/* Decodes the character references in the text of an HTML element */
+	protected static String unescapeHTML(String html) {
+		int amp = html.indexOf('&');
+		if (amp < 0)
+			return html;
+		StringBuilder builder = new StringBuilder(html.length());
+		int start = 0;
+		for (; amp >= 0; amp = html.indexOf('&', start)) {
+			builder.append(html, start, amp);
+			int semicolon = html.indexOf(';', amp);
+			String decoded = semicolon < 0 || semicolon - amp > 10 ?
+				null : decodeEntity(html.substring(amp + 1, semicolon));
+			if (decoded == null) {
+				builder.append('&');
+				start = amp + 1;
+			}
+			else {
+				builder.append(decoded);
+				start = semicolon + 1;
+			}
+		}
+		builder.append(html, start, html.length());
+		return builder.toString();
+	}
+
+	protected static String decodeEntity(String name) {
+		if (name.equals("lt"))
+			return "<";
+		if (name.equals("gt"))
+			return ">";
+		if (name.equals("amp"))
+			return "&";
+		if (name.equals("quot"))
+			return "\"";
+		if (name.equals("apos"))
+			return "'";
+		if (!name.startsWith("#"))
+			return null;
+		try {
+			int code = name.startsWith("#x") || name.startsWith("#X") ?
+				Integer.parseInt(name.substring(2), 16) :
+				Integer.parseInt(name.substring(1));
+			return new String(Character.toChars(code));
+		} catch (IllegalArgumentException e) {
+			// not a number, or not a code point
+			return null;
+		}
 	}
 
 	/* This method must not log out */
@@ -634,8 +740,18 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 
 	protected boolean saveOrUploadImages(GraphicalMediaWikiClient clientOrNull,
 			List<String> images) {
-		int i = 0, total = images.size() * 2 + 1;
-		for (String image : images) {
+		Map<String, MediaWikiClient.ImageInfo> onWiki = null;
+		if (clientOrNull != null) {
+			IJ.showStatus("Looking up images on the wiki...");
+			onWiki = getWikiImageInfo(clientOrNull, images);
+		}
+
+		// ask all the questions before starting the pipeline
+		List<ImageJob> jobs = new ArrayList<ImageJob>();
+		Set<String> seen = new HashSet<String>();
+		boolean needLogin = false;
+		for (int i = 0; i < images.size(); i++) {
+			String image = images.get(i);
 			ImagePlus imp = WindowManager.getImage(image);
 			if (imp == null)
 				return error("There is no image " + image);
@@ -648,7 +764,10 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 				imp.setTitle(newTitle);
 				rename(image, newTitle);
 				images.set(i, newTitle);
+				image = newTitle;
 			}
+			if (!seen.add(image))
+				continue;
 			FileInfo info = imp.getOriginalFileInfo();
 			if (info == null)
 				info = setTmpFileInfo(imp, image);
@@ -660,36 +779,292 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 				info.fileName = image;
 				imp.changes = true;
 			}
-			if (imp.changes) {
-				String fullFilename = info.directory + "/" + info.fileName;
-				Format format = Format.byExtension(fullFilename);
-				if (format == null)
-					format = this.imageFormat;
-				format.write(imp, fullFilename);
+			jobs.add(new ImageJob(image, imp, info, clientOrNull != null));
+		}
+		if (clientOrNull != null)
+			findImagesOnWiki(clientOrNull, images, jobs, onWiki);
+		for (ImageJob job : jobs) {
+			if (!job.upload)
+				continue;
+			MediaWikiClient.ImageInfo wikiInfo = onWiki == null ?
+				null : onWiki.get(job.image);
+			job.wikiInfo = wikiInfo;
+			if (wikiInfo == null ? wikiHasImage(job.image) : wikiInfo.exists)
+				switch (imageExistsDialog(job.image)) {
+				case 1: return error("Aborted");
+				case 2: job.upload = false;
+				}
+			needLogin |= job.upload;
+		}
+		// the jobs must not need to ask for a login
+		if (needLogin && !login(clientOrNull, "Login to upload images"))
+			return false;
+
+		return runImageJobs(clientOrNull, jobs, 0, jobs.size() + 1);
+	}
+
+	/* Logs in on the event dispatch thread, where the dialog belongs */
+	protected static boolean login(final GraphicalMediaWikiClient client,
+			final String title) {
+		if (client.isLoggedIn())
+			return true;
+		if (SwingUtilities.isEventDispatchThread())
+			return client.login(title);
+		final boolean[] result = { false };
+		try {
+			SwingUtilities.invokeAndWait(new Runnable() {
+				@Override
+				public void run() {
+					result[0] = client.login(title);
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (InvocationTargetException e) {
+			IJ.handleException(e.getCause());
+			return false;
+		}
+		return result[0];
+	}
+
+	/*
+	 * Skips the images whose contents are on the wiki already, and makes
+	 * the text refer to the existing files instead.
+	 */
+	protected void findImagesOnWiki(MediaWikiClient client,
+			List<String> images, List<ImageJob> jobs,
+			Map<String, MediaWikiClient.ImageInfo> onWiki) {
+		WikiFileHashes hashes = WikiFileHashes.getDefault();
+		Map<String, String> sha1ByName =
+			new LinkedHashMap<String, String>();
+		for (ImageJob job : jobs) {
+			// unsaved images are looked up once they are encoded
+			if (!job.upload || job.imp.changes)
+				continue;
+			try {
+				sha1ByName.put(job.image,
+						hashes.sha1(job.getFile()));
+			} catch (IOException e) {
+				/* upload it */
 			}
-			if (clientOrNull != null) {
-				if (wikiHasImage(image))
-					switch (imageExistsDialog(image)) {
-					case 1: return error("Aborted");
-					case 2: continue;
+		}
+		if (sha1ByName.isEmpty())
+			return;
+
+		IJ.showStatus("Looking for identical images on the wiki...");
+		Map<String, String> existing;
+		try {
+			existing = hashes.findOnWiki(client, sha1ByName, onWiki);
+		} catch (IOException e) {
+			System.err.println("Could not look up image hashes: "
+					+ e.getMessage());
+			return;
+		}
+		for (ImageJob job : jobs) {
+			String name = existing.get(job.image);
+			if (name == null)
+				continue;
+			useExistingImage(job, name);
+			for (int i = 0; i < images.size(); i++)
+				if (images.get(i).equals(job.image))
+					images.set(i, name);
+		}
+	}
+
+	/* Skips the upload, making the text refer to the file on the wiki */
+	protected void useExistingImage(ImageJob job, String name) {
+		job.upload = false;
+		if (name.equals(job.image))
+			return;
+		IJ.log(job.image + " is on the wiki already as " + name);
+		job.imp.setTitle(name);
+		rename(job.image, name);
+	}
+
+	protected final static int UPLOAD_THREADS = 2;
+
+	/*
+	 * Encodes the images on one pool per CPU and uploads them on a small
+	 * pool, so that encoding of the next image overlaps with the uploads.
+	 * Progress is reported in the order of the images.
+	 */
+	protected boolean runImageJobs(final MediaWikiClient clientOrNull,
+			List<ImageJob> jobs, int progressOffset, int progressTotal) {
+		if (jobs.isEmpty())
+			return true;
+		int cpus = Runtime.getRuntime().availableProcessors();
+		ExecutorService encoders = Executors.newFixedThreadPool(
+				Math.min(jobs.size(), cpus));
+		final ExecutorService uploaders = Executors.newFixedThreadPool(
+				Math.min(jobs.size(), UPLOAD_THREADS));
+		final AtomicBoolean cancelled = new AtomicBoolean();
+		List<Future<Future<String>>> results =
+			new ArrayList<Future<Future<String>>>();
+		String failure = null;
+		try {
+			for (final ImageJob job : jobs)
+				results.add(encoders.submit(new Callable<Future<String>>() {
+					@Override
+					public Future<String> call() throws IOException {
+						if (cancelled.get())
+							return null;
+						boolean encoded = job.imp.changes;
+						job.encode();
+						if (!job.upload || cancelled.get())
+							return null;
+						// only now is the hash of a new image known
+						if (encoded) {
+							job.existing = job.findOnWiki(clientOrNull);
+							if (job.existing != null)
+								return null;
+						}
+						return uploaders.submit(new Callable<String>() {
+							@Override
+							public String call() {
+								if (cancelled.get())
+									return null;
+								return job.upload(clientOrNull);
+							}
+						});
 					}
-				if (!clientOrNull.login("Login to upload " + image))
-					return false;
-				if (!clientOrNull.uploadFile(image, "Upload " + image
-							+ " for " + title,
-							new File(info.directory,
-								info.fileName))
-						&& !wikiHasImage(image))
-					return error("Uploading "
-							+ image + " failed");
-				IJ.showStatus("Uploading " + image + "...");
-				IJ.showProgress(++i + total / 2, total);
+				}));
+
+			for (int i = 0; i < jobs.size(); i++) {
+				ImageJob job = jobs.get(i);
+				IJ.showStatus((job.upload ? "Uploading " : "Saving ")
+						+ job.image + "...");
+				Future<String> upload = waitFor(results.get(i));
+				if (job.existing != null)
+					useExistingImage(job, job.existing);
+				failure = upload == null ? null : waitFor(upload);
+				if (failure != null)
+					break;
+				IJ.showProgress(progressOffset + i + 1, progressTotal);
+			}
+		} catch (CancellationException e) {
+			failure = "Aborted";
+		} catch (InterruptedException e) {
+			failure = "Aborted";
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			failure = "Could not save or upload images: "
+				+ e.getCause();
+		} finally {
+			/*
+			 * Drop the jobs that did not start yet before a (modal)
+			 * error message is shown; interrupting the running ones
+			 * would leave half-written files behind.
+			 */
+			cancelled.set(true);
+			for (Future<Future<String>> result : results)
+				result.cancel(false);
+			encoders.shutdown();
+			uploaders.shutdown();
+		}
+		return failure == null ? true : error(failure);
+	}
+
+	/* Waits for a result, giving the user a chance to abort with Escape */
+	protected static <T> T waitFor(Future<T> future)
+			throws InterruptedException, ExecutionException {
+		for (;;) {
+			if (IJ.escapePressed()) {
+				IJ.resetEscape();
+				throw new CancellationException();
+			}
+			try {
+				return future.get(100, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				/* check again */
 			}
-			else
-				// TODO check if it is already there
-				IJ.showProgress(++i, total);
 		}
-		return true;
+	}
+
+	protected class ImageJob {
+		protected final String image;
+		protected final ImagePlus imp;
+		protected final FileInfo info;
+		protected boolean upload;
+		/* what the wiki has under this name, if known */
+		protected MediaWikiClient.ImageInfo wikiInfo;
+		/* the name of a file with the same contents on the wiki */
+		protected String existing;
+
+		protected ImageJob(String image, ImagePlus imp, FileInfo info,
+				boolean upload) {
+			this.image = image;
+			this.imp = imp;
+			this.info = info;
+			this.upload = upload;
+		}
+
+		protected void encode() throws IOException {
+			if (!imp.changes)
+				return;
+			File file = getFile();
+			Format format = Format.byExtension(file.getName());
+			if (format == null)
+				format = imageFormat;
+			// write next to the target, so that no half file replaces it
+			File part = new File(file.getPath() + ".part");
+			boolean written = false;
+			try {
+				format.write(imp, part.getPath());
+				written = !imp.changes && (file.delete() ||
+						!file.exists()) && part.renameTo(file);
+			} finally {
+				if (!written) {
+					part.delete();
+					imp.changes = true;
+				}
+			}
+			if (!written)
+				throw new IOException("Could not write " + file);
+			try {
+				// remembered for the upload
+				WikiFileHashes.getDefault().sha1(getFile());
+			} catch (IOException e) {
+				/* ignore */
+			}
+		}
+
+		protected File getFile() {
+			return new File(info.directory, info.fileName);
+		}
+
+		/* Returns the name of a file with the same contents on the wiki */
+		protected String findOnWiki(MediaWikiClient client) {
+			WikiFileHashes hashes = WikiFileHashes.getDefault();
+			try {
+				Map<String, String> sha1ByName = Collections
+					.singletonMap(image, hashes.sha1(getFile()));
+				Map<String, MediaWikiClient.ImageInfo> known =
+					wikiInfo == null ? null :
+					Collections.singletonMap(image, wikiInfo);
+				return hashes.findOnWiki(client, sha1ByName, known)
+					.get(image);
+			} catch (IOException e) {
+				System.err.println("Could not look up " + image + ": "
+						+ e.getMessage());
+				return null;
+			}
+		}
+
+		/* Returns an error message, or null on success */
+		protected String upload(MediaWikiClient client) {
+			if (!client.uploadFile(image, "Upload " + image
+						+ " for " + title, getFile())
+					&& !wikiHasImage(client, image))
+				return "Uploading " + image + " failed";
+			WikiFileHashes hashes = WikiFileHashes.getDefault();
+			try {
+				hashes.put(client, hashes.sha1(getFile()), image);
+			} catch (IOException e) {
+				/* ignore */
+			}
+			return null;
+		}
 	}
 
 	protected String getContent(Element e) {
@@ -806,6 +1181,18 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 		}
 	}
 
+	/* Returns null if the wiki cannot answer batched queries */
+	protected Map<String, MediaWikiClient.ImageInfo> getWikiImageInfo(
+			MediaWikiClient client, List<String> images) {
+		try {
+			return client.getImageInfo(images);
+		} catch (IOException e) {
+			System.err.println("Could not look up images: "
+					+ e.getMessage());
+			return null;
+		}
+	}
+
 	protected boolean wikiHasImage(String image) {
 		try {
 			String html = getPage("Image:" + image);
@@ -825,6 +1212,31 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 		}
 	}
 
+	/*
+	 * Asks the given client whether the image exists, without showing any
+	 * dialogs, so that it can be called from the upload threads.
+	 */
+	protected static boolean wikiHasImage(MediaWikiClient client,
+			String image) {
+		try {
+			Map<String, MediaWikiClient.ImageInfo> infos =
+				client.getImageInfo(Collections.singletonList(image));
+			if (infos != null) {
+				MediaWikiClient.ImageInfo info = infos.get(image);
+				return info != null && info.exists;
+			}
+			String html = client.sendRequest(new String[] {
+				"title", "Image:" + image
+			}, null);
+			return html != null &&
+				html.indexOf("No file by this name exists") < 0 &&
+				html.indexOf("Login Required") < 0 &&
+				html.indexOf("Login required") < 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
 	protected int imageExistsDialog(String image) {
 		GenericDialog gd = new GenericDialog("Image exists");
 		gd.addMessage("The image '" + image + "' exists already on "
@@ -936,9 +1348,13 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 		rename(oldTitle, newTitle);
 	}
 
+	/* the white background image, if any; snapshots are cropped to it */
+	protected Frame whiteBackground;
+
 	protected void makeWhiteBackgroundImage() {
 		Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
 		final Frame white = new Frame("White");
+		whiteBackground = white;
 		white.setUndecorated(true);
 		Panel panel = new Panel();
 		panel.setSize(screenSize);
@@ -957,6 +1373,8 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 				else if (key == KeyEvent.VK_ESCAPE || key == KeyEvent.VK_W) {
 					WindowManager.removeWindow(white);
 					white.dispose();
+					if (whiteBackground == white)
+						whiteBackground = null;
 				}
 				else if (key == KeyEvent.VK_SPACE)
 					white.toBack();
@@ -975,14 +1393,50 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 		snapshotFrame.setLayout(new FlowLayout());
 		snapshotFrame.add(createButton("Snap", 0));
 		snapshotFrame.add(createButton("Snap (3sec delay)", 3000));
+		Button window = new Button("Snap window");
+		window.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				Window target = lastActiveWindow;
+				if (target != null && target.isShowing())
+					snapshot(target);
+				else
+					IJ.showStatus("Click into a window to snap first");
+			}
+		});
+		snapshotFrame.add(window);
 		snapshotFrame.pack();
 		snapshotFrame.setAlwaysOnTop(true);
+
+		// remember the window to snap
+		final AWTEventListener activation = new AWTEventListener() {
+			@Override
+			public void eventDispatched(AWTEvent event) {
+				if (event.getID() == WindowEvent.WINDOW_ACTIVATED &&
+						event.getSource() != snapshotFrame)
+					lastActiveWindow = (Window)event.getSource();
+			}
+		};
+		Toolkit.getDefaultToolkit().addAWTEventListener(activation,
+			AWTEvent.WINDOW_EVENT_MASK);
+
 		snapshotFrame.addWindowListener(new WindowAdapter() {
 			@Override
 			public void windowClosing(WindowEvent e) {
 				// TODO: ask first
 				snapshotFrame.dispose();
 			}
+
+			@Override
+			public void windowClosed(WindowEvent e) {
+				Toolkit.getDefaultToolkit()
+					.removeAWTEventListener(activation);
+				lastActiveWindow = null;
+				if (capture != null) {
+					capture.dispose();
+					capture = null;
+				}
+			}
 		});
 		snapshotFrame.setVisible(true);
 	}
@@ -1086,28 +1540,109 @@ public class Wiki_Editor implements PlugIn, ActionListener {
 		}
 	}
 
+	protected ScreenCapture capture;
+	protected volatile Window lastActiveWindow;
+
 	protected void snapshot() {
-		try {
-			Robot robot = new Robot();
-			Rectangle rectangle = new Rectangle(IJ.getScreenSize());
-			snapshotFrame.setVisible(false);
-			Image image = robot.createScreenCapture(rectangle);
-			snapshotFrame.setVisible(true);
-			if (image != null) {
-				String name = getSnapshotName();
-				ImagePlus imp = new ImagePlus(name, image);
-				imp.show();
-				if (putSnapshotsToBack)
-					imp.getWindow().toBack();
-
-				/* insert into editor */
-				int p = editor.getTextArea().getCaretPosition();
-				String insert = "[[Image:" + name + "]]\n";
-				editor.getTextArea().insert(insert, p);
-				p += insert.length();
-				editor.getTextArea().setCaretPosition(p);
+		snapshot(null);
+	}
+
+	/*
+	 * Snaps the given window, or the whole screen if it is null. The
+	 * capture, the conversion and the naming are queued on the capture
+	 * thread; only showing the image and inserting its link happen on
+	 * the event dispatch thread. The snapshot frame is hidden only while
+	 * the whole screen is captured.
+	 */
+	protected synchronized void snapshot(final Window window) {
+		if (capture == null)
+			capture = new ScreenCapture();
+		final ScreenCapture capture = this.capture;
+		capture.submit(new Runnable() {
+			@Override
+			public void run() {
+				BufferedImage image;
+				try {
+					Rectangle region = window == null ?
+						ScreenCapture.getScreenBounds() :
+						ScreenCapture.getBounds(window);
+					if (window != null)
+						image = capture.capture(region);
+					else {
+						// the frame is always on top, i.e. on screen
+						setSnapshotFrameVisible(false);
+						try {
+							image = capture.capture(region);
+						} finally {
+							setSnapshotFrameVisible(true);
+						}
+					}
+				} catch (AWTException e) {
+					return;
+				} catch (RuntimeException e) {
+					// e.g. the window went away in the meantime
+					IJ.handleException(e);
+					return;
+				}
+				if (image == null)
+					return;
+
+				final String name = getSnapshotName();
+				// use the captured pixels instead of grabbing them again
+				ImageProcessor ip = ImageBridge.toImageProcessor(image);
+				if (ip != null && window == null &&
+						whiteBackground != null &&
+						whiteBackground.isShowing())
+					ip = AutoCrop.crop(ip, 0xffffff, 0);
+				final ImagePlus imp = ip != null ?
+					new ImagePlus(name, ip) :
+					new ImagePlus(name, image);
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						imp.show();
+						if (putSnapshotsToBack)
+							imp.getWindow().toBack();
+
+						/* insert into editor */
+						int p = editor.getTextArea().getCaretPosition();
+						String insert = "[[Image:" + name + "]]\n";
+						editor.getTextArea().insert(insert, p);
+						p += insert.length();
+						editor.getTextArea().setCaretPosition(p);
+					}
+				});
+			}
+		});
+	}
+
+	/* Shows or hides the snapshot frame, waiting until that is done */
+	protected void setSnapshotFrameVisible(final boolean visible) {
+		final Frame frame = snapshotFrame;
+		if (frame == null || !frame.isDisplayable())
+			return;
+		if (!visible) {
+			try {
+				SwingUtilities.invokeAndWait(new Runnable() {
+					@Override
+					public void run() {
+						frame.setVisible(false);
+					}
+				});
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (InvocationTargetException e) {
+				IJ.handleException(e.getCause());
 			}
-		} catch (AWTException e) { /* ignore */ }
+		}
+		else
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					if (frame.isDisplayable())
+						frame.setVisible(true);
+				}
+			});
 	}
 
 	public static void main(String[] args) {
@@ -0,0 +1,242 @@
+/*-
+ * #%L
+ * Fiji Developer plugin for Fiji.
+ * %%
+ * Copyright (C) 2009 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package fiji;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs MediaWikiClient against a local stub that counts the connections
+ * it accepts, and checks that the PooledTransport reuses them.
+ *
+ * For comparison, the same requests are first sent through a transport
+ * that closes every connection; both timings are printed.
+ */
+public class PooledTransportTestDrive {
+	private static int accepted;
+
+	private final static int REQUESTS = 200;
+
+	public static void main(String[] args) throws Exception {
+		final ServerSocket server = new ServerSocket(0, 50,
+				InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						final Socket socket = server.accept();
+						synchronized (PooledTransportTestDrive.class) {
+							accepted++;
+						}
+						new Thread() {
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						}.start();
+					}
+				} catch (IOException e) {
+					/* closed */
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		try {
+			String url = "http://127.0.0.1:" + server.getLocalPort()
+				+ "/w/index.php";
+			run(url);
+		} finally {
+			server.close();
+		}
+		System.err.println("All good");
+	}
+
+	/* answers HTTP/1.1 requests on one connection until the client is done */
+	private static void serve(Socket socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+						socket.getInputStream(), "UTF-8"));
+			OutputStream out = socket.getOutputStream();
+			for (;;) {
+				String requestLine = in.readLine();
+				if (requestLine == null)
+					break;
+				int length = 0;
+				boolean close = false;
+				for (;;) {
+					String header = in.readLine();
+					if (header == null || header.equals(""))
+						break;
+					String lower = header.toLowerCase();
+					if (lower.startsWith("content-length:"))
+						length = Integer.parseInt(header.substring(15).trim());
+					else if (lower.equals("connection: close"))
+						close = true;
+				}
+				for (int i = 0; i < length; i++)
+					in.read(); /* discard; the bodies here are ASCII */
+				int code = requestLine.contains("missing") ? 404 : 200;
+				String body = "status " + code;
+				out.write(("HTTP/1.1 " + code + " Status\r\n"
+					+ "Content-Type: text/plain\r\n"
+					+ "Content-Length: " + body.length() + "\r\n"
+					+ (close ? "Connection: close\r\n" : "")
+					+ "\r\n" + body).getBytes("UTF-8"));
+				out.flush();
+				if (close)
+					break;
+			}
+		} catch (IOException e) {
+			/* client went away */
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				/* ignore */
+			}
+		}
+	}
+
+	private static void run(String url) throws Exception {
+		// for comparison: a new connection for every request
+		MediaWikiClient closing = new MediaWikiClient(url);
+		closing.setTransport(new ClosingTransport());
+		closing.setRateController(new WikiRateController(4, 4));
+		int before = getConnectionCount();
+		long unpooled = time(closing, REQUESTS, "Test");
+		int opened = getConnectionCount() - before;
+		check(opened == REQUESTS, "Connection: close opened only "
+				+ opened + " connections");
+
+		MediaWikiClient client = new MediaWikiClient(url);
+		client.setTransport(new MediaWikiClient.PooledTransport(4,
+					30000, 120000));
+		client.setRateController(new WikiRateController(4, 4));
+
+		// one request after another: one connection for all of them
+		before = getConnectionCount();
+		long pooled = time(client, REQUESTS, "Test");
+		opened = getConnectionCount() - before;
+		check(opened == 1, "Sequential requests opened " + opened
+				+ " connections");
+
+		// error answers must not cost the connection either
+		before = getConnectionCount();
+		for (int i = 0; i < 10; i++)
+			try {
+				get(client, "missing");
+				throw new RuntimeException("Expected a 404");
+			} catch (MediaWikiClient.HTTPException e) {
+				check(e.code == 404, "Expected 404, got " + e.code);
+			}
+		opened = getConnectionCount() - before;
+		check(opened == 0, "404s opened " + opened + " connections");
+
+		// concurrent requests: no more connections than slots
+		before = getConnectionCount();
+		concurrently(client, 8, 25);
+		opened = getConnectionCount() - before;
+		check(opened <= 4, "Concurrent requests opened " + opened
+				+ " connections for 4 slots");
+
+		System.err.println(REQUESTS + " requests took " + pooled
+				+ "ms on one pooled connection, " + unpooled
+				+ "ms with a new connection each");
+	}
+
+	/* opens a new connection for every request */
+	private static class ClosingTransport
+			implements MediaWikiClient.Transport {
+		@Override
+		public HttpURLConnection openConnection(URL url)
+				throws IOException {
+			HttpURLConnection conn =
+				(HttpURLConnection)url.openConnection();
+			conn.setRequestProperty("Connection", "close");
+			return conn;
+		}
+
+		@Override
+		public void release(HttpURLConnection connection) {
+			connection.disconnect();
+		}
+	}
+
+	private static long time(MediaWikiClient client, int count,
+			String title) throws IOException {
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < count; i++)
+			get(client, title);
+		return System.currentTimeMillis() - start;
+	}
+
+	private static void concurrently(final MediaWikiClient client,
+			int threads, final int count) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < threads; i++)
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						for (int j = 0; j < count; j++)
+							get(client, "Test");
+						return null;
+					}
+				}));
+			for (Future<Void> result : results)
+				result.get();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static synchronized int getConnectionCount() {
+		return accepted;
+	}
+
+	private static void get(MediaWikiClient client, String title)
+			throws IOException {
+		client.sendRequest(new String[] { "title", title }, null);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException(message);
+	}
+}
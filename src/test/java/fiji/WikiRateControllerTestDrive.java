@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * Fiji Developer plugin for Fiji.
+ * %%
+ * Copyright (C) 2009 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package fiji;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * Runs MediaWikiClient against a local stub that answers with the given
+ * status codes, and checks how the rate controller reacts to them.
+ */
+public class WikiRateControllerTestDrive {
+	/* the status codes (and Retry-After seconds) of the next responses */
+	private final static Queue<int[]> responses = new LinkedList<int[]>();
+	private static int requests;
+
+	public static void main(String[] args) throws Exception {
+		HttpServer server = HttpServer.create(
+				new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				while (in.read() >= 0)
+					; /* discard */
+				int[] response;
+				synchronized (responses) {
+					response = responses.poll();
+					requests++;
+				}
+				if (response == null)
+					response = new int[] { 200, 0 };
+				if (response[1] > 0)
+					exchange.getResponseHeaders().add("Retry-After",
+							"" + response[1]);
+				byte[] body = ("status " + response[0]).getBytes("UTF-8");
+				exchange.sendResponseHeaders(response[0], body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+		try {
+			String url = "http://127.0.0.1:" + server.getAddress().getPort()
+				+ "/w/index.php";
+			run(url);
+		} finally {
+			server.stop(0);
+		}
+		System.err.println("All good");
+	}
+
+	/* counts how the client reported its requests */
+	private static class CountingController extends WikiRateController {
+		int failures, releases;
+
+		CountingController(int initialLimit, int maxLimit) {
+			super(initialLimit, maxLimit);
+		}
+
+		@Override
+		public synchronized void failed() {
+			failures++;
+			super.failed();
+		}
+
+		@Override
+		public synchronized void released() {
+			releases++;
+			super.released();
+		}
+	}
+
+	private static void run(String url) throws Exception {
+		MediaWikiClient client = new MediaWikiClient(url);
+		CountingController controller = new CountingController(4, 8);
+		client.setRateController(controller);
+		client.maxAttempts = 2;
+
+		// ordinary 4xx answers must not slow us down
+		for (int i = 0; i < 6; i++)
+			expectFailure(client, 404);
+		check(controller.failures == 0 && controller.releases == 6,
+				"404s were reported as " + controller.failures
+				+ " failure(s)");
+		check(controller.getLimit() == 4, "404s lowered the limit to "
+				+ controller.getLimit());
+
+		// 503 is retried, after halving the limit
+		respond(503, 0);
+		get(client);
+		check(controller.failures == 1, "503 was not reported as failure");
+		check(controller.getLimit() < 4, "503 did not lower the limit");
+
+		// 429 with Retry-After holds back the retry
+		respond(429, 1);
+		long start = System.currentTimeMillis();
+		get(client);
+		long millis = System.currentTimeMillis() - start;
+		check(controller.failures == 2, "429 was not reported as failure");
+		check(millis >= 1000, "Retry-After was not honoured: retried "
+				+ "after " + millis + "ms");
+
+		// the limit recovers when the wiki answers quickly again
+		int before = controller.getLimit();
+		for (int i = 0; i < 10; i++)
+			get(client);
+		check(controller.getLimit() > before, "The limit did not recover");
+		check(controller.releases == 6, "Successes were reported as "
+				+ "releases");
+
+		// edits are repeated after a 429, but not after a 503
+		respond(429, 0);
+		int count = getRequests();
+		post(client);
+		check(getRequests() == count + 2, "POST was not repeated after 429");
+		respond(503, 0);
+		count = getRequests();
+		try {
+			post(client);
+			throw new RuntimeException("POST succeeded despite a 503");
+		} catch (MediaWikiClient.HTTPException e) {
+			check(e.code == 503, "Expected 503, got " + e.code);
+		}
+		check(getRequests() == count + 1, "POST was repeated after 503");
+	}
+
+	private static void respond(int code, int retryAfterSeconds) {
+		synchronized (responses) {
+			responses.add(new int[] { code, retryAfterSeconds });
+		}
+	}
+
+	private static int getRequests() {
+		synchronized (responses) {
+			return requests;
+		}
+	}
+
+	private static void get(MediaWikiClient client) throws IOException {
+		client.sendRequest(new String[] { "title", "Test" }, null);
+	}
+
+	private static void post(MediaWikiClient client) throws IOException {
+		client.sendRequest(new String[] { "title", "Test" },
+				new String[] { "wpTextbox1", "edit" });
+	}
+
+	private static void expectFailure(MediaWikiClient client, int code) {
+		respond(code, 0);
+		try {
+			get(client);
+		} catch (MediaWikiClient.HTTPException e) {
+			check(e.code == code, "Expected " + code + ", got " + e.code);
+			return;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		throw new RuntimeException("Expected HTTP " + code);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException(message);
+	}
+}